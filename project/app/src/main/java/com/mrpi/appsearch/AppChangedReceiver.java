@@ -13,18 +13,26 @@ public class AppChangedReceiver extends BroadcastReceiver {
         Log.d("AppSearch", "Something has changed in the apps");
 
         String action = received_intent.getAction();
-        if (Intent.ACTION_UNINSTALL_PACKAGE.equals(action) ||
-                Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
-            if (!(received_intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))) { // It's no upgrade
-                // Remove package from launch cache
-                Uri data = received_intent.getData();
-                String pkg_name = data.getEncodedSchemeSpecificPart(); // URL has the form of: "package:package_url"
-                Log.d("AppSearch", "Package '" + pkg_name + "' has been uninstalled, removing it from the database");
-                DBHelper db_helper = DBHelper.getInstance(context);
-                db_helper.removePackage(pkg_name);
+        Uri data = received_intent.getData();
+        Intent app_index_intent = new Intent(context, AppIndexService.class);
+        if (data != null) {
+            // Only the changed package needs to be indexed, which takes care of its icon as well
+            boolean removed = false;
+            if (Intent.ACTION_UNINSTALL_PACKAGE.equals(action) ||
+                    Intent.ACTION_PACKAGE_REMOVED.equals(action) ||
+                    Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
+                if (received_intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    // It's an upgrade, which is followed by PACKAGE_ADDED and PACKAGE_REPLACED
+                    return;
+                }
+                removed = true;
             }
+            String pkg_name = data.getEncodedSchemeSpecificPart(); // URL has the form of: "package:package_url"
+            Log.d("AppSearch", "Package '" + pkg_name + "' has changed (" + action + "), updating it in the database");
+            app_index_intent.setAction(AppIndexService.ACTION_INDEX_PACKAGE);
+            app_index_intent.putExtra(AppIndexService.EXTRA_PACKAGE_NAME, pkg_name);
+            app_index_intent.putExtra(AppIndexService.EXTRA_REMOVED, removed);
         }
-        Intent app_index_intent = new Intent(context, AppIndexService.class);
         context.startService(app_index_intent);
     }
 }
@@ -0,0 +1,150 @@
+package com.mrpi.appsearch;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The in-memory index of the installed apps (see NameIndex).
+ *
+ * Like DBHelper, this class is a singleton: the index is loaded once from the apps table and kept
+ * for the life of the process. When the apps table is replaced after re-indexing (see
+ * {@link DBHelper#switchDirty()}) it's invalidated, so it's reloaded on the next search. When a
+ * single app is changed in the table, the change is applied to the index directly (see
+ * {@link #updateApp(long, AppSearchResult)}).
+ */
+public class AppIndex extends NameIndex<AppSearchResult> {
+
+    // The current index, needed for the singleton mechanism
+    private static AppIndex m_instance;
+
+    /** The package names, in the same order as the names. */
+    private final String[] m_package_names;
+
+    private AppIndex(List<String> names, long[] masks, List<String> initials, long[] row_ids,
+                     List<String> package_names) {
+        super(names, masks, initials, row_ids);
+        m_package_names = package_names.toArray(new String[0]);
+        createResults();
+    }
+
+    /**
+     * Provide access to the current index, loading it from the database if needed.
+     */
+    public static synchronized AppIndex getInstance(Context context) {
+        if (m_instance == null) {
+            m_instance = load(DBHelper.getInstance(context).getReadableDatabase());
+        }
+        return m_instance;
+    }
+
+    /**
+     * Drop the current index, so that it's reloaded from the database on next use. Searches that
+     * are currently running keep on using the old index.
+     */
+    public static synchronized void invalidate() {
+        m_instance = null;
+        AppSearchResult.forgetOtherIds();
+    }
+
+    /**
+     * Apply the change of a single app in the apps table to the current index, so that it doesn't
+     * need to be reloaded from the database. An index is immutable, so a new one is built from the
+     * columns of the current one. If no index is loaded, there's nothing to do, as it will be
+     * loaded with the change in it.
+     *
+     * @param row_id the ROWID of the app in the database
+     * @param app the app as it's stored now, or null if it was removed
+     */
+    public static synchronized void updateApp(long row_id, AppSearchResult app) {
+        AppIndex index = m_instance;
+        if (index == null) return;
+
+        // Copy all other entries, keeping them ordered on ROWID
+        int size = index.size();
+        ArrayList<String> names = new ArrayList<>(size + 1);
+        ArrayList<String> package_names = new ArrayList<>(size + 1);
+        long[] masks = new long[size + 1];
+        long[] row_ids = new long[size + 1];
+        for (int entry = 0; entry <= size; entry++) {
+            long entry_row_id = (entry < size) ? index.getRowId(entry) : Long.MAX_VALUE;
+            if (app != null && row_id <= entry_row_id && (names.isEmpty() || row_ids[names.size() - 1] < row_id)) {
+                String search_key = searchKey(app.name);
+                masks[names.size()] = charMask(search_key);
+                row_ids[names.size()] = row_id;
+                names.add(app.name);
+                package_names.add(app.package_name);
+            }
+            if (entry < size && entry_row_id != row_id) {
+                masks[names.size()] = index.getMasks()[entry];
+                row_ids[names.size()] = entry_row_id;
+                names.add(index.getName(entry));
+                package_names.add(index.getPackageName(entry));
+            }
+        }
+
+        m_instance = new AppIndex(names, Arrays.copyOf(masks, names.size()), null,
+                Arrays.copyOf(row_ids, names.size()), package_names);
+        AppSearchResult.forgetOtherIds();
+        Log.d("AppSearch", "Updated the index to " + names.size() + " apps");
+    }
+
+    /**
+     * Read all the apps from the database. The database is pre-sorted on app popularity, so the
+     * ROWID order is kept.
+     *
+     * @param db the database to read from
+     * @return a new AppIndex
+     */
+    private static AppIndex load(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT public_name, package_name, name_mask, ROWID, initials, search_key FROM " + DBHelper.TBL_APPS + " ORDER BY ROWID", null);
+
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> package_names = new ArrayList<>();
+        ArrayList<String> initials = new ArrayList<>();
+        long[] masks = new long[cursor.getCount()];
+        long[] row_ids = new long[cursor.getCount()];
+        boolean result = cursor.moveToFirst();
+        while (result) {
+            String name = cursor.getString(0);
+            // The mask and initials are derived from the stored search key. They are recalculated
+            // if that isn't the key of the name anymore, or if they are missing: for rows that
+            // were indexed before the columns existed, or before the normalization changed (see
+            // the upgrade to version 8 in DBHelper).
+            String search_key = searchKey(name);
+            if (cursor.isNull(2) || !search_key.equals(cursor.getString(5))) {
+                masks[names.size()] = charMask(search_key);
+                initials.add(null);
+            } else {
+                masks[names.size()] = cursor.getLong(2);
+                initials.add(cursor.getString(4)); // May still be null, see name_mask
+            }
+            row_ids[names.size()] = cursor.getLong(3);
+            names.add(name);
+            package_names.add(cursor.getString(1));
+            result = cursor.moveToNext();
+        }
+        cursor.close();
+        Log.d("AppSearch", "Loaded " + names.size() + " apps into the index");
+
+        return new AppIndex(names, masks, initials, row_ids, package_names);
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the package name of the entry.
+     */
+    public String getPackageName(int entry) {
+        return m_package_names[entry];
+    }
+
+    @Override
+    AppSearchResult createResult(int entry) {
+        return new AppSearchResult(getName(entry), m_package_names[entry], getRowId(entry));
+    }
+}
@@ -1,15 +1,25 @@
 package com.mrpi.appsearch;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import android.app.IntentService;
-import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.provider.Settings;
 import android.util.Log;
 
 /**
@@ -20,23 +30,90 @@ import android.util.Log;
  * even. To prevent the slowdown, this is relegated to this service that will be
  * run each time the app is brought to the foreground.
  *
+ * Most of the time, nothing has changed since the last run, so first a cheap
+ * check is done (see findChangedPackages()). From Android 8, the system keeps
+ * track of the changed packages; before that, a fingerprint of the installed
+ * packages is compared. Only when it's unknown what has changed, all apps are
+ * indexed again.
+ *
  * This problem could also be solved with a thread, but using a service has
  * the advantage that it keeps running when the app is closed. In the use case
  * that a user opens the app, accidentally closes it, and reopens it again,
  * a recent list of apps is already present (this service will be run again,
  * but the app can already start).
  *
- * The apps are sorted according to popularity for this moment.
+ * The apps are sorted according to popularity for this moment. As the
+ * popularity is scored per time slot (see CountAndDecay), the table is only
+ * sorted again when the time slot has changed since the last run.
+ *
+ * When a single package is installed, updated or removed, AppChangedReceiver
+ * starts this service with ACTION_INDEX_PACKAGE instead. Then only the row of
+ * that package is changed in the live apps table, and the change is applied to
+ * the in-memory AppIndex directly, so the cost doesn't depend on the number of
+ * installed apps. The icon store is left as it is: an outdated icon is never
+ * read from it (see IconStore), and it's brought up to date on the next full
+ * indexing run.
  */
 public class AppIndexService
         extends IntentService {
 
+    /** The action to index a single package, given by EXTRA_PACKAGE_NAME. */
+    public static final String ACTION_INDEX_PACKAGE = "com.mrpi.appsearch.action.INDEX_PACKAGE";
+    /** The package name for ACTION_INDEX_PACKAGE. */
+    public static final String EXTRA_PACKAGE_NAME = "com.mrpi.appsearch.extra.PACKAGE_NAME";
+    /** Whether the package was removed, for ACTION_INDEX_PACKAGE. */
+    public static final String EXTRA_REMOVED = "com.mrpi.appsearch.extra.REMOVED";
+
+    /** The preferences with the state of the packages at the last indexing run. */
+    private static final String INDEX_PREFERENCES = "PreferencesAppIndex";
+    private static final String PREF_LOCALE = "locale";
+    private static final String PREF_BOOT_COUNT = "boot_count";
+    private static final String PREF_SEQUENCE_NUMBER = "sequence_number";
+    private static final String PREF_FINGERPRINT = "fingerprint";
+    private static final String PREF_TIME_SLOT = "time_slot";
+    private static final String PREF_DAY = "day";
+
+    /** When more packages than this have changed, all apps are indexed again. */
+    private static final int MAX_CHANGED_PACKAGES = 16;
+
     public AppIndexService() {
         super("AppIndexService");
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        if (intent != null && ACTION_INDEX_PACKAGE.equals(intent.getAction())) {
+            indexPackage(intent.getStringExtra(EXTRA_PACKAGE_NAME), intent.getBooleanExtra(EXTRA_REMOVED, false));
+            return;
+        }
+
+        // Find out what has changed since the last run, and save the current state when done
+        SharedPreferences preferences = getSharedPreferences(INDEX_PREFERENCES, Context.MODE_PRIVATE);
+        SharedPreferences.Editor state_editor = preferences.edit();
+        long time_slot = CountAndDecay.getTimeSlot();
+        int day = Calendar.getInstance().get(Calendar.DAY_OF_WEEK);
+        state_editor.putLong(PREF_TIME_SLOT, time_slot);
+        state_editor.putInt(PREF_DAY, day);
+        List<String> changed_packages = findChangedPackages(preferences, state_editor);
+        if (changed_packages != null && changed_packages.size() <= MAX_CHANGED_PACKAGES) {
+            Log.d("AppSearch", changed_packages.size() + " packages have changed since the last indexing run");
+            for (String package_name : changed_packages) {
+                indexPackage(package_name, !isInstalled(package_name));
+            }
+            // The popularity only changes with the time slot
+            if (time_slot != preferences.getLong(PREF_TIME_SLOT, -1) || day != preferences.getInt(PREF_DAY, -1)) {
+                sortByPopularity(time_slot, day);
+            }
+        } else {
+            indexAll();
+        }
+        state_editor.apply();
+    }
+
+    /**
+     * Index all installed apps, sorted by popularity.
+     */
+    private void indexAll() {
         Log.d("AppSearch", "Updating app index");
 
         // Get the apps with known scores.
@@ -54,12 +131,220 @@ public class AppIndexService
             installed_apps.removeAll(popular_apps);
             popular_apps.addAll(installed_apps);
 
-            // Write back the result to the database
+            // Write back the result to the database, and pre-render the icons of new
+            // and updated apps
             writeToDB(popular_apps);
+            IconStore.update(this, popular_apps);
         } else {
             writeToDB(installed_apps);
+            IconStore.update(this, installed_apps);
+        }
+
+    }
+
+    /**
+     * Find out which packages have changed since the last indexing run, without querying the
+     * system for all apps.
+     *
+     * @param preferences the state at the last indexing run
+     * @param state_editor to put the current state in
+     * @return the package names of the changed packages, which may be empty, or null if it's
+     *         unknown what has changed.
+     */
+    private List<String> findChangedPackages(SharedPreferences preferences, SharedPreferences.Editor state_editor) {
+        // The names of all apps may have changed with the locale
+        String locale = getLocaleTags();
+        state_editor.putString(PREF_LOCALE, locale);
+        boolean known = locale.equals(preferences.getString(PREF_LOCALE, null)) &&
+                AppIndex.getInstance(this).size() > 0;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // The sequence number is reset on each boot
+            int boot_count = Settings.Global.getInt(getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+            state_editor.putInt(PREF_BOOT_COUNT, boot_count);
+            known = known && boot_count != -1 && boot_count == preferences.getInt(PREF_BOOT_COUNT, -1);
+
+            int sequence_number = known ? preferences.getInt(PREF_SEQUENCE_NUMBER, 0) : 0;
+            ChangedPackages changed = getPackageManager().getChangedPackages(sequence_number);
+            if (changed != null) {
+                state_editor.putInt(PREF_SEQUENCE_NUMBER, changed.getSequenceNumber());
+            } else {
+                state_editor.putInt(PREF_SEQUENCE_NUMBER, sequence_number);
+            }
+            if (!known) {
+                return null;
+            }
+            return (changed != null) ? changed.getPackageNames() : Collections.<String>emptyList();
+        } else {
+            long fingerprint = getFingerprint();
+            state_editor.putLong(PREF_FINGERPRINT, fingerprint);
+            if (!known || !preferences.contains(PREF_FINGERPRINT) ||
+                    preferences.getLong(PREF_FINGERPRINT, 0) != fingerprint) {
+                return null;
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the locales of the app's resources, which determine the names of the apps.
+     */
+    @SuppressWarnings("deprecation")
+    private String getLocaleTags() {
+        Configuration configuration = getResources().getConfiguration();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return configuration.getLocales().toLanguageTags();
+        }
+        return configuration.locale.toString();
+    }
+
+    /**
+     * Calculate a fingerprint of the installed packages and their last update times, so that any
+     * installed, updated or removed package changes it.
+     *
+     * @return the fingerprint
+     */
+    private long getFingerprint() {
+        long fingerprint = 0;
+        List<PackageInfo> packages = getPackageManager().getInstalledPackages(0);
+        for (PackageInfo package_info : packages) {
+            long hash = package_info.packageName.hashCode() * 0x9e3779b97f4a7c15L + package_info.lastUpdateTime;
+            hash = (hash ^ (hash >>> 29)) * 0xbf58476d1ce4e5b9L;
+            // Summed up, so the order of the packages doesn't matter
+            fingerprint += hash ^ (hash >>> 32);
+        }
+        return fingerprint * 31 + packages.size();
+    }
+
+    /**
+     * @param package_name the package name
+     * @return whether the package is installed.
+     */
+    private boolean isInstalled(String package_name) {
+        try {
+            getPackageManager().getPackageInfo(package_name, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Bring the order of the apps table up to date with the popularity of the apps for this
+     * moment, without querying the system for the apps. The table is only rewritten if the order
+     * has changed.
+     *
+     * @param time_slot the current time slot (see CountAndDecay.getTimeSlot())
+     * @param day the current day of the week
+     */
+    private void sortByPopularity(long time_slot, int day) {
+        AppIndex index = AppIndex.getInstance(this);
+        HashMap<String, Integer> entries = new HashMap<>();
+        for (int entry = 0; entry < index.size(); entry++) {
+            entries.put(index.getPackageName(entry), entry);
+        }
+
+        // The popular apps go first, in order of popularity. If they're at the start already, the
+        // others are too.
+        ArrayList<Integer> order = new ArrayList<>();
+        boolean sorted = true;
+        Cursor cursor = DBHelper.getInstance(this).getAccess().queryMostUsed(time_slot, day, -1, null);
+        try {
+            boolean result = cursor.moveToFirst();
+            while (result) {
+                Integer entry = entries.remove(cursor.getString(0));
+                if (entry != null) {
+                    sorted = sorted && entry == order.size();
+                    order.add(entry);
+                }
+                result = cursor.moveToNext();
+            }
+        } finally {
+            cursor.close();
+        }
+        if (sorted) {
+            return;
+        }
+
+        ArrayList<AppSearchResult> apps = new ArrayList<>(index.size());
+        for (int entry : order) {
+            apps.add(new AppSearchResult(index.getName(entry), index.getPackageName(entry)));
+        }
+        for (int entry = 0; entry < index.size(); entry++) {
+            if (entries.containsKey(index.getPackageName(entry))) {
+                apps.add(new AppSearchResult(index.getName(entry), index.getPackageName(entry)));
+            }
+        }
+        Log.d("AppSearch", "Sorting the app index by popularity");
+        writeToDB(apps);
+    }
+
+    /**
+     * Bring the row of a single package in the apps table up to date, and apply the change to the
+     * in-memory index. Its icon is dropped from the IconCache as well, as it might have changed.
+     * This is done here rather than in AppChangedReceiver, as on Android 8 and up most package
+     * changes are only found by findChangedPackages().
+     *
+     * @param package_name the package name
+     * @param removed whether the package was removed. If not, the package is added or updated if
+     *                it has a launchable activity, and removed otherwise (as it may have been
+     *                disabled).
+     */
+    private void indexPackage(String package_name, boolean removed) {
+        Log.d("AppSearch", "Updating package \"" + package_name + "\" in the app index");
+        DBHelper db_helper = DBHelper.getInstance(this);
+        SQLiteDatabase db = db_helper.getWritableDatabase();
+        DBAccess access = db_helper.getAccess();
+
+        AppSearchResult app = removed ? null : queryApp(package_name);
+        long row_id;
+        db.beginTransactionNonExclusive();
+        if (app != null) {
+            String search_key = NameIndex.searchKey(app.name);
+            row_id = access.putApp(app.name, search_key, NameIndex.charMask(search_key),
+                    NameIndex.initials(app.name), app.package_name);
+        } else {
+            row_id = access.deleteApp(package_name);
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+
+        if (removed) {
+            // Its usage scores are of no use anymore either
+            db_helper.removePackage(package_name);
+        }
+        if (row_id != -1) {
+            AppIndex.updateApp(row_id, app);
+        }
+        QueryCache.invalidate();
+        IconCache.invalidate(package_name);
+        SmartIcon.forgetShown();
+    }
+
+    /**
+     * Query the system for a single installed app.
+     *
+     * @param package_name the package name of the app
+     * @return an AppSearchResult for the app, or null if it has no launchable activity or is this
+     *         app itself.
+     */
+    private AppSearchResult queryApp(String package_name) {
+        if (package_name.equals(getPackageName())) {
+            return null;
+        }
+
+        final PackageManager pm = getPackageManager();
+        final Intent main_intent = new Intent(Intent.ACTION_MAIN, null);
+        main_intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        main_intent.setPackage(package_name);
+        final List<ResolveInfo> activities = pm.queryIntentActivities(main_intent, 0);
+        if (activities.isEmpty()) {
+            return null;
         }
 
+        // There's a single row per package, which a full index fills with the first activity
+        ActivityInfo activity_info = activities.get(0).activityInfo;
+        return new AppSearchResult(activity_info.loadLabel(pm).toString(), package_name);
     }
 
     /**
@@ -98,19 +383,23 @@ public class AppIndexService
      * This needs to be done in a single step, and not during indexing, because
      * that process can be quite slow and so would prevent search access to the
      * database while indexing.
+     * Next to the name, its search key (lowercased, without diacritics) and
+     * the character mask and initials derived from it are stored, so that
+     * they don't need to be calculated when the AppIndex is loaded, and the
+     * key is added to the full text search table.
      *
      * @param apps list of apps to write to the database.
      */
     private void writeToDB(ArrayList<AppSearchResult> apps) {
         DBHelper db_helper = DBHelper.getInstance(this);
         SQLiteDatabase db = db_helper.getWritableDatabase();
+        DBAccess access = db_helper.getAccess();
 
         db.beginTransactionNonExclusive();
         for (AppSearchResult app_data : apps) {
-            ContentValues values = new ContentValues();
-            values.put("public_name", app_data.name);
-            values.put("package_name", app_data.package_name);
-            db.replace(DBHelper.TBL_APPS_DIRTY, null, values);
+            String search_key = NameIndex.searchKey(app_data.name);
+            access.insertDirtyApp(app_data.name, search_key, NameIndex.charMask(search_key),
+                    NameIndex.initials(app_data.name), app_data.package_name);
         }
         db.setTransactionSuccessful();
         db.endTransaction();
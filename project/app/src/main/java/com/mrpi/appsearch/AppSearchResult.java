@@ -1,9 +1,10 @@
 package com.mrpi.appsearch;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 
+import java.util.HashMap;
+
 /**
  * Container for holding the data of an app.
  *
@@ -14,29 +15,77 @@ import android.graphics.drawable.Drawable;
 public class AppSearchResult extends SearchResult {
     public String package_name;
 
+    /** The ROWID of the app in the apps table, or NO_ROW_ID if it doesn't come from the index. */
+    public final long row_id;
+
+    public static final long NO_ROW_ID = -1;
+
+    // The ids of the apps that don't come from the index, by package name. They're forgotten when
+    // the index is replaced (see forgetOtherIds()).
+    private static final HashMap<String, Long> m_other_ids = new HashMap<>();
+
     /**
-     * Simple constructor.
+     * Simple constructor, for an app that doesn't come from the index.
      *
      * @param name         the public display name of the app
      * @param package_name the full package name of the app
      */
     public AppSearchResult(String name, String package_name) {
+        this(name, package_name, NO_ROW_ID);
+    }
+
+    /**
+     * Constructor for an app in the index.
+     *
+     * @param name         the public display name of the app
+     * @param package_name the full package name of the app
+     * @param row_id       the ROWID of the app in the apps table
+     */
+    public AppSearchResult(String name, String package_name, long row_id) {
         super(name);
         this.package_name = package_name;
+        this.row_id = row_id;
     }
 
     /**
-     * Try to find the app icon. Return null if it cannot be found, which is an indication that the
-     * app is not available anymore.
+     * Try to find the app icon, which usually comes from the IconCache. Return null if it cannot
+     * be found, which is an indication that the app is not available anymore.
 
      * @param context the application context
      * @return the icon Drawable or null
      */
     public Drawable resolveIcon(Context context) {
-        try {
-            return context.getPackageManager().getApplicationIcon(package_name);
-        } catch (PackageManager.NameNotFoundException e) {
-            return null;
+        return IconCache.getIcon(context, package_name);
+    }
+
+    /**
+     * The id of an app in the index is its ROWID, which is positive and unique within the apps
+     * table. Apps that don't come from the index (like the most used apps) get a negative id,
+     * handed out once per package name for as long as the index lasts, so they can't collide with
+     * the ROWIDs either.
+     *
+     * @return the id of the app
+     */
+    @Override
+    long getId() {
+        if (row_id != NO_ROW_ID) return row_id;
+        synchronized (m_other_ids) {
+            Long id = m_other_ids.get(package_name);
+            if (id == null) {
+                id = -1L - m_other_ids.size();
+                m_other_ids.put(package_name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Forget the ids of the apps that don't come from the index, so that they don't pile up. This
+     * should be called when the index is replaced.
+     */
+    static void forgetOtherIds() {
+        synchronized (m_other_ids) {
+            m_other_ids.clear();
         }
     }
 
@@ -0,0 +1,66 @@
+package com.mrpi.appsearch;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The in-memory index of the commands (see NameIndex and CommandSearchResult). The commands only
+ * change with a database upgrade, so the index is loaded once for the life of the process.
+ */
+public class CommandIndex extends NameIndex<CommandSearchResult> {
+
+    // The only instance, needed for the singleton mechanism
+    private static CommandIndex m_instance;
+
+    /** The command codes, in the same order as the names. */
+    private final CommandSearchResult.CommandCode[] m_commands;
+
+    private CommandIndex(List<String> names, long[] row_ids, List<CommandSearchResult.CommandCode> commands) {
+        super(names, null, null, row_ids);
+        m_commands = commands.toArray(new CommandSearchResult.CommandCode[0]);
+        createResults();
+    }
+
+    /**
+     * Provide access to the single instance, loading it from the database if needed.
+     */
+    public static synchronized CommandIndex getInstance(Context context) {
+        if (m_instance == null) {
+            m_instance = load(DBHelper.getInstance(context).getReadableDatabase());
+        }
+        return m_instance;
+    }
+
+    /**
+     * Read all the commands from the database.
+     *
+     * @param db the database to read from
+     * @return a new CommandIndex
+     */
+    private static CommandIndex load(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT name, command_code, ROWID FROM " + DBHelper.TBL_COMMANDS + " ORDER BY ROWID", null);
+
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<CommandSearchResult.CommandCode> commands = new ArrayList<>();
+        long[] row_ids = new long[cursor.getCount()];
+        boolean result = cursor.moveToFirst();
+        while (result) {
+            row_ids[names.size()] = cursor.getLong(2);
+            names.add(cursor.getString(0));
+            commands.add(CommandSearchResult.CommandCode.values()[cursor.getInt(1)]);
+            result = cursor.moveToNext();
+        }
+        cursor.close();
+
+        return new CommandIndex(names, row_ids, commands);
+    }
+
+    @Override
+    CommandSearchResult createResult(int entry) {
+        return new CommandSearchResult(getName(entry), m_commands[entry]);
+    }
+}
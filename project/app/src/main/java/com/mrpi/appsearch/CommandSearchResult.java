@@ -20,6 +20,11 @@ public class CommandSearchResult extends SearchResult {
         COLLECT_RAW_CLICKS,
         DONT_COLLECT_RAW_CLICKS,
         EXPORT_STACKTRACES,
+        USE_FULL_TEXT_SEARCH,
+        DONT_USE_FULL_TEXT_SEARCH,
+        SHOW_SEARCH_STATISTICS,
+        SHOW_LATENCIES,
+        EXPORT_LATENCIES,
     }
 
     public CommandCode command;
@@ -39,6 +44,18 @@ public class CommandSearchResult extends SearchResult {
         return context.getResources().getDrawable(android.R.drawable.ic_menu_manage);
     }
 
+    /**
+     * The id of a command is derived from its command code. It's at the bottom of the range of
+     * longs, far away from the ids of the apps (see AppSearchResult.getId()), and just above
+     * AdapterView.INVALID_ROW_ID.
+     *
+     * @return the id of the command
+     */
+    @Override
+    long getId() {
+        return Long.MIN_VALUE + 1 + command.ordinal();
+    }
+
     /**
      * Helper method to add all known commands to a database with their full command string and
      * their Enum number. This method should be called by DBHelper when installing/upgrading the
@@ -53,6 +70,11 @@ public class CommandSearchResult extends SearchResult {
         commands.put(CommandCode.EXPORT_STACKTRACES, "/export stacktraces");
         commands.put(CommandCode.COLLECT_RAW_CLICKS, "/log app openings");
         commands.put(CommandCode.DONT_COLLECT_RAW_CLICKS, "/don't log app openings");
+        commands.put(CommandCode.USE_FULL_TEXT_SEARCH, "/use full text search");
+        commands.put(CommandCode.DONT_USE_FULL_TEXT_SEARCH, "/don't use full text search");
+        commands.put(CommandCode.SHOW_SEARCH_STATISTICS, "/show search statistics");
+        commands.put(CommandCode.SHOW_LATENCIES, "/show search latencies");
+        commands.put(CommandCode.EXPORT_LATENCIES, "/export search latencies");
 
         for (CommandCode code : commands.keySet()) {
             ContentValues values = new ContentValues();
@@ -3,7 +3,6 @@ package com.mrpi.appsearch;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.util.Calendar;
@@ -68,29 +67,18 @@ public class CountAndDecay {
      * @param package_name the package name of the app
      */
     public void countAppLaunch(String package_name) {
+        // The usage changes, so cached search results may be outdated
+        QueryCache.invalidate();
+
         // Perform a decay step if needed
         decay();
 
-        // Update the overall table
+        // Update the overall table, using the precompiled statement for the usage
         SQLiteDatabase db = m_db.getWritableDatabase();
-
-        // The SQL statement for the weekly usage field
-        SQLiteStatement statement = db.compileStatement(
-                "REPLACE INTO " + DBHelper.TBL_USAGE + " (package_name, time_slot, day, score) VALUES (" +
-                        "?, ?, ?, " +
-                        "COALESCE((" +
-                        "SELECT score FROM " + DBHelper.TBL_USAGE + " WHERE package_name=? AND time_slot=? AND day=?" +
-                        "), 0) + ?)");
-        statement.bindString(1, package_name);
-        statement.bindString(4, package_name);
+        DBAccess access = m_db.getAccess();
 
         // Insert the usage with time slot and day of -1 just to count the app launch
-        statement.bindLong(2, -1);
-        statement.bindLong(3, -1);
-        statement.bindLong(5, -1);
-        statement.bindLong(6, -1);
-        statement.bindLong(7, SCORE_ALL);
-        statement.executeInsert();
+        access.addUsage(package_name, -1, -1, SCORE_ALL);
 
         long slot = getTimeSlot();
         int day = Calendar.getInstance().get(Calendar.DAY_OF_WEEK);
@@ -108,15 +96,9 @@ public class CountAndDecay {
                 day -= 1;
                 if (day == -1) day = 6;
             }
-            statement.bindLong(2, tmp_slot);
-            statement.bindLong(3, day);
-            statement.bindLong(5, tmp_slot);
-            statement.bindLong(6, day);
-
             // Insert progressively smaller bonuses the further away we are from the
             // time slot
-            statement.bindLong(7, SCORE_WEEK - ((Math.abs(adjacent) * 5)));
-            statement.executeInsert();
+            access.addUsage(package_name, tmp_slot, day, SCORE_WEEK - ((Math.abs(adjacent) * 5)));
 
             adjacent--;
         }
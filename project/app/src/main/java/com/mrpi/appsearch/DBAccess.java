@@ -0,0 +1,351 @@
+package com.mrpi.appsearch;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+
+/**
+ * Data access layer for the queries that run often: on each keystroke, app launch or indexed app.
+ *
+ * Statements that don't return rows are compiled once into an SQLiteStatement and reused for all
+ * calls. A statement can't be used by two threads at once, so each one is locked while it's bound
+ * and executed. Queries that return rows can't be precompiled this way; these are run with a
+ * constant SQL text, so that SQLite's per-connection statement cache can reuse the compiled
+ * version.
+ *
+ * For each statement and query, the number of runs and the time they take is recorded (see
+ * {@link #getStatistics()}).
+ *
+ * There is a single instance, which is owned by DBHelper (see {@link DBHelper#getAccess()}).
+ */
+public class DBAccess {
+
+    private final DBHelper m_db_helper;
+
+    /** The run count and timing of a statement or query. */
+    private static class Statistics {
+        final String name;
+        int runs = 0;
+        long total_ns = 0;
+        long max_ns = 0;
+
+        Statistics(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long start_ns) {
+            long duration = System.nanoTime() - start_ns;
+            runs++;
+            total_ns += duration;
+            max_ns = Math.max(max_ns, duration);
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (runs == 0) return name + ": not used";
+            return name + ": " + runs + "x, avg " + (total_ns / runs / 1000) + " us, max " + (max_ns / 1000) + " us";
+        }
+    }
+
+    /** A precompiled statement. It's compiled on first use, when the database is surely set up. */
+    private class Statement extends Statistics {
+        final String sql;
+        private SQLiteStatement m_statement = null;
+
+        Statement(String name, String sql) {
+            super(name);
+            this.sql = sql;
+        }
+
+        /**
+         * @return the compiled statement. The caller should hold the lock on this object.
+         */
+        SQLiteStatement get() {
+            if (m_statement == null) {
+                m_statement = m_db_helper.getWritableDatabase().compileStatement(sql);
+            }
+            return m_statement;
+        }
+    }
+
+    private final Statement m_add_usage = new Statement("add usage",
+            "REPLACE INTO " + DBHelper.TBL_USAGE + " (package_name, time_slot, day, score) VALUES (" +
+                    "?1, ?2, ?3, " +
+                    "COALESCE((" +
+                    "SELECT score FROM " + DBHelper.TBL_USAGE + " WHERE package_name=?1 AND time_slot=?2 AND day=?3" +
+                    "), 0) + ?4)");
+    private final Statement m_insert_dirty_app = new Statement("insert app",
+            "INSERT OR IGNORE INTO " + DBHelper.TBL_APPS_DIRTY + " (public_name, search_key, name_mask, initials, package_name) " +
+                    "VALUES (?, ?, ?, ?, ?)");
+    private final Statement m_insert_dirty_full_text = new Statement("insert app full text",
+            "INSERT INTO " + DBHelper.TBL_APPS_DIRTY_FTS + " (docid, chars) VALUES (?, ?)");
+    private final Statement m_find_app = new Statement("find app",
+            "SELECT ROWID FROM " + DBHelper.TBL_APPS + " WHERE package_name=?");
+    private final Statement m_update_app = new Statement("update app",
+            "UPDATE " + DBHelper.TBL_APPS + " SET public_name=?, search_key=?, name_mask=?, initials=? WHERE ROWID=?");
+    private final Statement m_add_app = new Statement("add app",
+            "INSERT INTO " + DBHelper.TBL_APPS + " (public_name, search_key, name_mask, initials, package_name) " +
+                    "VALUES (?, ?, ?, ?, ?)");
+    private final Statement m_delete_app = new Statement("delete app",
+            "DELETE FROM " + DBHelper.TBL_APPS + " WHERE ROWID=?");
+    private final Statement m_add_full_text = new Statement("add app full text",
+            "INSERT INTO " + DBHelper.TBL_APPS_FTS + " (docid, chars) VALUES (?, ?)");
+    private final Statement m_delete_full_text = new Statement("delete app full text",
+            "DELETE FROM " + DBHelper.TBL_APPS_FTS + " WHERE docid=?");
+
+    private static final String SQL_MOST_USED =
+            "SELECT package_name FROM " + DBHelper.TBL_USAGE +
+                    " WHERE (time_slot=? AND day=?) OR (time_slot=-1 AND day=-1) ORDER BY score DESC LIMIT ?";
+    private final Statistics m_most_used_stats = new Statistics("most used apps");
+    private final Statistics m_apps_full_text_stats = new Statistics("app full text search");
+    private final Statistics m_commands_full_text_stats = new Statistics("command full text search");
+
+    DBAccess(DBHelper db_helper) {
+        m_db_helper = db_helper;
+    }
+
+    /**
+     * Add to the usage score of an app for a time slot and day.
+     *
+     * @param package_name the package name of the app
+     * @param time_slot the time slot, or -1 for the overall score
+     * @param day the day of the week, or -1 for the overall score
+     * @param score the score to add
+     */
+    public void addUsage(String package_name, long time_slot, long day, long score) {
+        synchronized (m_add_usage) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = m_add_usage.get();
+            statement.bindString(1, package_name);
+            statement.bindLong(2, time_slot);
+            statement.bindLong(3, day);
+            statement.bindLong(4, score);
+            statement.executeInsert();
+            m_add_usage.record(start);
+        }
+    }
+
+    /**
+     * Add an app to the dirty apps table, and to its full text search table. There's a single row
+     * per package, so if the package was added already (apps can have more launcher activities),
+     * the first one is kept.
+     *
+     * @param name the public name of the app
+     * @param search_key the search key of the name (see NameIndex.searchKey())
+     * @param name_mask the character mask of the search key
+     * @param initials the initials of the name
+     * @param package_name the package name of the app
+     */
+    public void insertDirtyApp(String name, String search_key, long name_mask, String initials, String package_name) {
+        long row_id;
+        synchronized (m_insert_dirty_app) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = m_insert_dirty_app.get();
+            statement.bindString(1, name);
+            statement.bindString(2, search_key);
+            statement.bindLong(3, name_mask);
+            statement.bindString(4, initials);
+            statement.bindString(5, package_name);
+            row_id = statement.executeInsert();
+            m_insert_dirty_app.record(start);
+        }
+        if (row_id == -1) {
+            return; // The package is in the table already
+        }
+        synchronized (m_insert_dirty_full_text) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = m_insert_dirty_full_text.get();
+            statement.bindLong(1, row_id);
+            statement.bindString(2, DBHelper.toSearchTokens(search_key));
+            statement.executeInsert();
+            m_insert_dirty_full_text.record(start);
+        }
+    }
+
+    /**
+     * Add an app to the live apps table and its full text search table, or update it if its
+     * package is in there already. An updated app keeps its ROWID, and so its place in the order
+     * of popularity; a new one is added at the end. The caller should run this in a transaction.
+     *
+     * @param name the public name of the app
+     * @param search_key the search key of the name (see NameIndex.searchKey())
+     * @param name_mask the character mask of the search key
+     * @param initials the initials of the name
+     * @param package_name the package name of the app
+     * @return the ROWID of the app.
+     */
+    public long putApp(String name, String search_key, long name_mask, String initials, String package_name) {
+        long row_id = findApp(package_name);
+        if (row_id != -1) {
+            synchronized (m_update_app) {
+                long start = System.nanoTime();
+                SQLiteStatement statement = m_update_app.get();
+                statement.bindString(1, name);
+                statement.bindString(2, search_key);
+                statement.bindLong(3, name_mask);
+                statement.bindString(4, initials);
+                statement.bindLong(5, row_id);
+                statement.executeUpdateDelete();
+                m_update_app.record(start);
+            }
+            deleteRow(m_delete_full_text, row_id);
+        } else {
+            synchronized (m_add_app) {
+                long start = System.nanoTime();
+                SQLiteStatement statement = m_add_app.get();
+                statement.bindString(1, name);
+                statement.bindString(2, search_key);
+                statement.bindLong(3, name_mask);
+                statement.bindString(4, initials);
+                statement.bindString(5, package_name);
+                row_id = statement.executeInsert();
+                m_add_app.record(start);
+            }
+        }
+        synchronized (m_add_full_text) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = m_add_full_text.get();
+            statement.bindLong(1, row_id);
+            statement.bindString(2, DBHelper.toSearchTokens(search_key));
+            statement.executeInsert();
+            m_add_full_text.record(start);
+        }
+        return row_id;
+    }
+
+    /**
+     * Remove an app from the live apps table and its full text search table. The caller should
+     * run this in a transaction.
+     *
+     * @param package_name the package name of the app
+     * @return the ROWID that the app had, or -1 if it wasn't in the table.
+     */
+    public long deleteApp(String package_name) {
+        long row_id = findApp(package_name);
+        if (row_id != -1) {
+            deleteRow(m_delete_app, row_id);
+            deleteRow(m_delete_full_text, row_id);
+        }
+        return row_id;
+    }
+
+    /**
+     * @param package_name the package name of an app
+     * @return the ROWID of the app in the live apps table, or -1 if it's not in there.
+     */
+    private long findApp(String package_name) {
+        synchronized (m_find_app) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = m_find_app.get();
+            statement.bindString(1, package_name);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                m_find_app.record(start);
+            }
+        }
+    }
+
+    /**
+     * Run a statement that deletes a row by its ROWID or docid.
+     *
+     * @param delete the statement
+     * @param row_id the ROWID or docid of the row
+     */
+    private static void deleteRow(Statement delete, long row_id) {
+        synchronized (delete) {
+            long start = System.nanoTime();
+            SQLiteStatement statement = delete.get();
+            statement.bindLong(1, row_id);
+            statement.executeUpdateDelete();
+            delete.record(start);
+        }
+    }
+
+    /**
+     * Find the most used apps for a time slot and day, or overall.
+     *
+     * @param time_slot the time slot
+     * @param day the day of the week
+     * @param limit the maximum number of rows, or -1 for no limit
+     * @param signal the cancellation signal for the query, or null
+     * @return a cursor with the package names, in order of decreasing score. The query has been
+     *         run already.
+     */
+    public Cursor queryMostUsed(long time_slot, long day, int limit, CancellationSignal signal) {
+        long start = System.nanoTime();
+        Cursor cursor = m_db_helper.getReadableDatabase().rawQuery(SQL_MOST_USED,
+                new String[]{Long.toString(time_slot), Long.toString(day), Integer.toString(limit)}, signal);
+        run(cursor);
+        m_most_used_stats.record(start);
+        return cursor;
+    }
+
+    /**
+     * Find the rows that contain all the tokens in a full text search table.
+     *
+     * @param fts_table the full text search table, which should be TBL_APPS_FTS or
+     *                  TBL_COMMANDS_FTS
+     * @param tokens the tokens to match on (see DBHelper.toSearchTokens())
+     * @param signal the cancellation signal for the query, or null
+     * @return a cursor with the docids of the matching rows. The query has been run already.
+     */
+    public Cursor queryFullText(String fts_table, String tokens, CancellationSignal signal) {
+        long start = System.nanoTime();
+        Cursor cursor = m_db_helper.getReadableDatabase().rawQuery(
+                "SELECT docid FROM " + fts_table + " WHERE chars MATCH ?", new String[]{tokens}, signal);
+        run(cursor);
+        if (fts_table.equals(DBHelper.TBL_COMMANDS_FTS)) {
+            m_commands_full_text_stats.record(start);
+        } else {
+            m_apps_full_text_stats.record(start);
+        }
+        return cursor;
+    }
+
+    /**
+     * Make sure the query of a cursor is run (which normally happens on first access), so that
+     * it's included in the timing.
+     *
+     * @param cursor the cursor
+     */
+    private static void run(Cursor cursor) {
+        try {
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a human readable summary of the runs and timing of all statements and queries.
+     */
+    public String getStatistics() {
+        ArrayList<Statistics> all = new ArrayList<>();
+        all.add(m_add_usage);
+        all.add(m_insert_dirty_app);
+        all.add(m_insert_dirty_full_text);
+        all.add(m_find_app);
+        all.add(m_update_app);
+        all.add(m_add_app);
+        all.add(m_delete_app);
+        all.add(m_add_full_text);
+        all.add(m_delete_full_text);
+        all.add(m_most_used_stats);
+        all.add(m_apps_full_text_stats);
+        all.add(m_commands_full_text_stats);
+
+        StringBuilder statistics = new StringBuilder();
+        for (Statistics stats : all) {
+            if (statistics.length() > 0) statistics.append('\n');
+            statistics.append(stats);
+        }
+        return statistics.toString();
+    }
+}
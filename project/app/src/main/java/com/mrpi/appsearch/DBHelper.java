@@ -1,6 +1,8 @@
 package com.mrpi.appsearch;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -22,6 +24,11 @@ import android.util.Log;
  * the method {@link #switchDirty()} makes the "dirty" table the new "apps"
  * table and creates a new empty dirty table.
  *
+ * Next to the tables with the apps and the commands, there are full text
+ * search tables that can be used to narrow down the candidates for a fuzzy
+ * search (see {@link #toSearchTokens(String)}). The full text tables for the
+ * apps are switched along with the app tables.
+ *
  * The second class is of tables contain the scores for the apps based on
  * their number of launches. There are three tables: for launches on this
  * particular time and day, on this particular time, and overall.
@@ -31,14 +38,17 @@ public class DBHelper extends SQLiteOpenHelper {
     // The only instance, needed for the singleton mechanism
     private static DBHelper m_instance;
 
+    // The data access layer on top of this database
+    private DBAccess m_access;
+
     /** Housekeeping parameters */
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 10;
     private static final String DB_NAME = "apps.sqlite";
 
     /** The schema for the table with installed apps. */
     public static final String TBL_APPS = "apps";
     public static final String TBL_APPS_DIRTY = "dirty";
-    public static final String SCHEMA_INSTALLED = "(package_name TEXT PRIMARY KEY, public_name TEXT)";
+    public static final String SCHEMA_INSTALLED = "(package_name TEXT PRIMARY KEY, public_name TEXT, name_mask INTEGER, initials TEXT, search_key TEXT)";
 
     /** The schema for the table with the app usage. */
     public static final String TBL_USAGE = "usage";
@@ -55,6 +65,13 @@ public class DBHelper extends SQLiteOpenHelper {
     private final static String SCHEMA_COMMANDS =
             "(name TEXT, command_code INTEGER PRIMARY KEY)";
 
+    /** Full text search tables for the names of the apps and commands. The docid of each row is
+     *  the ROWID of the app or command. */
+    public static final String TBL_APPS_FTS = "apps_fts";
+    public static final String TBL_APPS_DIRTY_FTS = "dirty_fts";
+    public static final String TBL_COMMANDS_FTS = "commands_fts";
+    private static final String SCHEMA_FTS = "USING fts4(chars)";
+
     /** The metadata table is a simple text key/numeric value storage. */
     private static final String SCHEMA_METADATA = "(field TEXT PRIMARY KEY, content INTEGER)";
 
@@ -77,6 +94,16 @@ public class DBHelper extends SQLiteOpenHelper {
         return m_instance;
     }
 
+    /**
+     * Provide access to the precompiled statements for the frequent queries (see DBAccess).
+     */
+    public synchronized DBAccess getAccess() {
+        if (m_access == null) {
+            m_access = new DBAccess(this);
+        }
+        return m_access;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.beginTransaction();
@@ -88,6 +115,10 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE TABLE " + TBL_COMMANDS + " " + SCHEMA_COMMANDS);
         CommandSearchResult.initializeDB(db, TBL_COMMANDS);
         db.execSQL("CREATE TABLE " + TBL_STACKTRACES + " " + SCHEMA_STACKTRACES);
+        db.execSQL("CREATE VIRTUAL TABLE " + TBL_APPS_FTS + " " + SCHEMA_FTS);
+        db.execSQL("CREATE VIRTUAL TABLE " + TBL_APPS_DIRTY_FTS + " " + SCHEMA_FTS);
+        db.execSQL("CREATE VIRTUAL TABLE " + TBL_COMMANDS_FTS + " " + SCHEMA_FTS);
+        fillFullTextTable(db, TBL_COMMANDS, "name", TBL_COMMANDS_FTS);
         db.setTransactionSuccessful();
         db.endTransaction();
         Log.d("AppSearch", "Database initialized");
@@ -110,12 +141,115 @@ public class DBHelper extends SQLiteOpenHelper {
             db.execSQL("CREATE TABLE " + TBL_STACKTRACES + " " + SCHEMA_STACKTRACES + ";");
             Log.d("AppSearch", "Database upgrades for version 4 executed");
         }
+        if ((old_version < 5) && (new_version >= 5)) {
+            // The masks of the existing rows are left empty; they will be filled on the next
+            // indexing round.
+            db.execSQL("ALTER TABLE " + TBL_APPS + " ADD COLUMN name_mask INTEGER;");
+            db.execSQL("ALTER TABLE " + TBL_APPS_DIRTY + " ADD COLUMN name_mask INTEGER;");
+            Log.d("AppSearch", "Database upgrades for version 5 executed");
+        }
+        if ((old_version < 6) && (new_version >= 6)) {
+            db.execSQL("CREATE VIRTUAL TABLE " + TBL_APPS_FTS + " " + SCHEMA_FTS);
+            db.execSQL("CREATE VIRTUAL TABLE " + TBL_APPS_DIRTY_FTS + " " + SCHEMA_FTS);
+            db.execSQL("CREATE VIRTUAL TABLE " + TBL_COMMANDS_FTS + " " + SCHEMA_FTS);
+            fillFullTextTable(db, TBL_APPS, "public_name", TBL_APPS_FTS);
+            CommandSearchResult.initializeDB(db, TBL_COMMANDS); // For the new commands
+            fillFullTextTable(db, TBL_COMMANDS, "name", TBL_COMMANDS_FTS);
+            Log.d("AppSearch", "Database upgrades for version 6 executed");
+        }
+        if ((old_version < 7) && (new_version >= 7)) {
+            // Like the masks, the initials are filled on the next indexing round
+            db.execSQL("ALTER TABLE " + TBL_APPS + " ADD COLUMN initials TEXT;");
+            db.execSQL("ALTER TABLE " + TBL_APPS_DIRTY + " ADD COLUMN initials TEXT;");
+            Log.d("AppSearch", "Database upgrades for version 7 executed");
+        }
+        if ((old_version < 8) && (new_version >= 8)) {
+            // The masks and initials are now derived from the search key, so the old ones are
+            // dropped and recalculated when loading the index, until the next indexing round fills
+            // in everything.
+            db.execSQL("ALTER TABLE " + TBL_APPS + " ADD COLUMN search_key TEXT;");
+            db.execSQL("ALTER TABLE " + TBL_APPS_DIRTY + " ADD COLUMN search_key TEXT;");
+            db.execSQL("UPDATE " + TBL_APPS + " SET name_mask = NULL, initials = NULL;");
+            fillFullTextTable(db, TBL_APPS, "public_name", TBL_APPS_FTS);
+            fillFullTextTable(db, TBL_COMMANDS, "name", TBL_COMMANDS_FTS);
+            Log.d("AppSearch", "Database upgrades for version 8 executed");
+        }
+        if ((old_version < 9) && (new_version >= 9)) {
+            CommandSearchResult.initializeDB(db, TBL_COMMANDS); // For the new commands
+            fillFullTextTable(db, TBL_COMMANDS, "name", TBL_COMMANDS_FTS);
+            Log.d("AppSearch", "Database upgrades for version 9 executed");
+        }
+        if ((old_version < 10) && (new_version >= 10)) {
+            CommandSearchResult.initializeDB(db, TBL_COMMANDS); // For the new commands
+            fillFullTextTable(db, TBL_COMMANDS, "name", TBL_COMMANDS_FTS);
+            Log.d("AppSearch", "Database upgrades for version 10 executed");
+        }
+    }
+
+    /**
+     * Convert a search key (see NameIndex.searchKey()) to the text that is stored in the full text
+     * search tables: the distinct letters and digits of the key, separated by spaces. Each
+     * character is thus a separate token.
+     *
+     * Trigram or prefix tokens can't be used here, because a fuzzy match doesn't need to contain
+     * any substring of the query. The names that contain all the characters of a query however are
+     * guaranteed to include all fuzzy matches, so narrowing down on these doesn't lose results.
+     *
+     * @param key the search key of a name, or a normalized query
+     * @return the tokens to store or to MATCH on; empty if there are no letters or digits.
+     */
+    public static String toSearchTokens(String key) {
+        StringBuilder tokens = new StringBuilder();
+        for (int pos = 0; pos < key.length(); pos++) {
+            char c = key.charAt(pos);
+            if (Character.isLetterOrDigit(c) && tokens.indexOf(String.valueOf(c)) == -1) {
+                if (tokens.length() > 0) tokens.append(' ');
+                tokens.append(c);
+            }
+        }
+        return tokens.toString();
+    }
+
+    /**
+     * Add a row to a full text search table.
+     *
+     * @param db the database to write to
+     * @param fts_table the full text search table
+     * @param row_id the ROWID of the app or command
+     * @param key the search key of the name of the app or command
+     */
+    public static void addToFullTextTable(SQLiteDatabase db, String fts_table, long row_id, String key) {
+        ContentValues values = new ContentValues();
+        values.put("docid", row_id);
+        values.put("chars", toSearchTokens(key));
+        db.insert(fts_table, null, values);
+    }
+
+    /**
+     * Fill a full text search table with all names from a table.
+     *
+     * @param db the database to write to
+     * @param table the table with the names
+     * @param name_column the column in the table holding the names
+     * @param fts_table the full text search table to fill
+     */
+    private static void fillFullTextTable(SQLiteDatabase db, String table, String name_column, String fts_table) {
+        db.delete(fts_table, null, null);
+        Cursor cursor = db.rawQuery("SELECT ROWID, " + name_column + " FROM " + table, null);
+        boolean result = cursor.moveToFirst();
+        while (result) {
+            addToFullTextTable(db, fts_table, cursor.getLong(0), NameIndex.searchKey(cursor.getString(1)));
+            result = cursor.moveToNext();
+        }
+        cursor.close();
     }
 
     /**
      * After the database has been filled with updated app data, the old "app"
      * table is switched out for the new one, and a new empty "dirty" table is
-     * provided.
+     * provided. The same is done for the full text search tables. The
+     * in-memory AppIndex is invalidated, so it will be reloaded from the new
+     * table.
      */
     public void switchDirty() {
         Log.d("AppSearch", "Making the switch");
@@ -124,9 +258,17 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE " + TBL_APPS + ";");
         db.execSQL("ALTER TABLE " + TBL_APPS_DIRTY + " RENAME TO " + TBL_APPS + ";");
         db.execSQL("CREATE TABLE " + TBL_APPS_DIRTY + " " + SCHEMA_INSTALLED + ";");
+        db.execSQL("DROP TABLE " + TBL_APPS_FTS + ";");
+        db.execSQL("ALTER TABLE " + TBL_APPS_DIRTY_FTS + " RENAME TO " + TBL_APPS_FTS + ";");
+        db.execSQL("CREATE VIRTUAL TABLE " + TBL_APPS_DIRTY_FTS + " " + SCHEMA_FTS + ";");
         db.setTransactionSuccessful();
         db.endTransaction();
         Log.d("AppSearch", "Switch made");
+
+        // The in-memory index needs to be reloaded from the new table, and cached results are
+        // outdated
+        AppIndex.invalidate();
+        QueryCache.invalidate();
     }
 
     /**
@@ -139,5 +281,6 @@ public class DBHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = getWritableDatabase();
         String[] where_args = {package_name};
         db.delete(TBL_USAGE, "package_name=?", where_args);
+        QueryCache.invalidate();
     }
 }
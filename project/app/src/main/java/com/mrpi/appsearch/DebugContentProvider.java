@@ -23,13 +23,15 @@ import java.util.Random;
  * A ContentProvider that shares debug information about the app, which is the only thing this
  * app needs to share.
  *
- * There are two things this ContentProvider can share:
+ * There are three things this ContentProvider can share:
  * - the internal app database; using the path /export_db/AppSearch.sqlite
  * - stacktraces of the last 60 days; using the path /export_stacktraces/id/stacktraces.txt.
  *   id is a random 7-digit number; when stacktraces are requested, a new file is constructed, and
  *   since this request can be made from multiple entry's (query(), openFile(), getType()), we need
  *   a unique id to check if this is the same request as in the other entry or a new one, which is
  *   done using this 7-digit random number in the URI. Why 7 digits? Well, that's random.
+ * - the latencies of the last searches (see LatencyTracer); using the path
+ *   /export_latencies/id/latencies.csv, where id works the same as for the stacktraces.
  */
 public class DebugContentProvider extends ContentProvider {
 
@@ -39,13 +41,17 @@ public class DebugContentProvider extends ContentProvider {
     /** The 7-digit id for requesting stacktraces */
     private String m_stacktraces_uri_id;
 
+    /** The 7-digit id for requesting latencies */
+    private String m_latencies_uri_id;
+
     /**
      * The actions we recognize. Each action is accompanied by a URI path and a name for the file
      * that will be shared.
      */
     public enum Action {
         EXPORT_DB("export_db", "AppSearch.sqlite"),
-        EXPORT_STACKTRACES("export_stacktraces", "stacktaces.txt");
+        EXPORT_STACKTRACES("export_stacktraces", "stacktaces.txt"),
+        EXPORT_LATENCIES("export_latencies", "latencies.csv");
 
         public final String path;
         public final String file_name;
@@ -78,7 +84,7 @@ public class DebugContentProvider extends ContentProvider {
      */
     public static Uri getUriForAction(Action action) {
         Uri.Builder builder = new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(action.path);
-        if (action == Action.EXPORT_STACKTRACES) {
+        if (action == Action.EXPORT_STACKTRACES || action == Action.EXPORT_LATENCIES) {
             int num = new Random().nextInt(9999999);
             builder.appendPath(String.format("%07d", num));
         }
@@ -98,6 +104,9 @@ public class DebugContentProvider extends ContentProvider {
         } else if (segments.size() == 3 && segments.get(0).equals(Action.EXPORT_STACKTRACES.path)) {
             file = getStacktraceFile(segments.get(1));
             file_name = Action.EXPORT_STACKTRACES.file_name;
+        } else if (segments.size() == 3 && segments.get(0).equals(Action.EXPORT_LATENCIES.path)) {
+            file = getLatenciesFile(segments.get(1));
+            file_name = Action.EXPORT_LATENCIES.file_name;
         }
         if (file != null) {
             MatrixCursor cursor = new MatrixCursor(new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, 1);
@@ -118,6 +127,8 @@ public class DebugContentProvider extends ContentProvider {
             file = getDBFile();
         } else if (segments.size() == 3 && segments.get(0).equals(Action.EXPORT_STACKTRACES.path)) {
             file = getStacktraceFile(segments.get(1));
+        } else if (segments.size() == 3 && segments.get(0).equals(Action.EXPORT_LATENCIES.path)) {
+            file = getLatenciesFile(segments.get(1));
         }
         if (file != null) {
             try {
@@ -139,6 +150,10 @@ public class DebugContentProvider extends ContentProvider {
             if (getStacktraceFile(segments.get(1)) != null) {
                 return "text/plain";
             }
+        } else if (segments.size() == 3 && segments.get(0).equals(Action.EXPORT_LATENCIES.path)) {
+            if (getLatenciesFile(segments.get(1)) != null) {
+                return "text/csv";
+            }
         }
         return null;
     }
@@ -193,6 +208,36 @@ public class DebugContentProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Construct a csv file with the latencies of the last searches.
+     *
+     * @param id the 7-digit id for the request.
+     * @return a File object to the csv file.
+     */
+    private File getLatenciesFile(String id) {
+        // id should be a 7 digit string
+        if (!id.matches("[0-9]{7}")) return null;
+
+        File latencies_file = new File(getContext().getCacheDir(), "latencies.csv");
+
+        if (!latencies_file.exists() || !id.equals(m_latencies_uri_id)) {
+            // Generate or regenerate the file
+            m_latencies_uri_id = id;
+            try {
+                BufferedWriter writer = new BufferedWriter(new FileWriter(latencies_file));
+                writer.write(LatencyTracer.getCsv());
+                writer.close();
+            } catch (IOException e) {
+                Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }
+
+        if (latencies_file.exists() && id.equals(m_latencies_uri_id)) {
+            return latencies_file;
+        }
+        return null;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         // Inserting is not supported
@@ -0,0 +1,274 @@
+package com.mrpi.appsearch;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Searcher that combines the results of several sources, like the apps and the commands, into a
+ * single ranked list.
+ *
+ * Sources are registered with addSource(). The first source is the primary one (the apps): it's
+ * searched on the calling thread, so it's never held up by the others. The other sources are
+ * searched concurrently on a small, shared thread pool. Each of them has a latency budget: if it
+ * didn't deliver its results by the time the primary source is done plus the budget, its results
+ * are left out of this search.
+ *
+ * The results of all sources are merged by match rating, with the order of registration as
+ * tie-breaker. Like FuzzySearcher, only the best results are merged up front; the rest is merged
+ * when SearchResultList.complete() is called.
+ *
+ * Since what matters to the user is how soon the best match shows up, results can be delivered
+ * progressively to a ProgressListener: first a provisional top hit from the primary source, then
+ * the results of the primary source while the others are still being waited for.
+ */
+public class FederatedSearcher {
+
+    /** The number of threads for searching the secondary sources. */
+    private static final int NUM_THREADS = 2;
+
+    // Thread pool shared by all federated searchers. The threads are created when needed.
+    private static ExecutorService m_executor_service;
+
+    /** A registered source. */
+    private static class Source {
+        final FuzzySearcher<? extends SearchResult> searcher;
+        final String prefix;
+        final long budget_ms;
+
+        Source(FuzzySearcher<? extends SearchResult> searcher, String prefix, long budget_ms) {
+            this.searcher  = searcher;
+            this.prefix    = prefix;
+            this.budget_ms = budget_ms;
+        }
+    }
+
+    private final ArrayList<Source> m_sources = new ArrayList<>();
+
+    /**
+     * Interface for being notified of intermediate results while a search is running. All calls
+     * are made on the search thread.
+     */
+    public interface ProgressListener extends FuzzySearcher.TopHitListener {
+        /**
+         * Called when the primary source is done, if the results of other sources are still to
+         * come. The list is a complete snapshot of the best results so far.
+         *
+         * @param results the results of the primary source
+         */
+        void onPartialResults(SearchResultList<SearchResult> results);
+    }
+
+    /**
+     * Register a source. The first source that is registered is the primary source.
+     *
+     * @param searcher the searcher for the source
+     * @param prefix the source is only searched for queries that start with this prefix, like "/"
+     *               for the commands. Use an empty string to search it for all queries.
+     * @param budget_ms the time in milliseconds the source may take beyond the primary source
+     *                  before its results are left out. It's not used for the primary source.
+     */
+    public void addSource(FuzzySearcher<? extends SearchResult> searcher, String prefix, long budget_ms) {
+        m_sources.add(new Source(searcher, prefix, budget_ms));
+    }
+
+    /**
+     * Search all sources for the query and merge their results.
+     *
+     * @param query the query to search for
+     * @param max_results the number of results to rank up front, or -1 for all results (see
+     *                    FuzzySearcher.search())
+     * @param listener if not null, this is notified of intermediate results.
+     * @param signal if not null, the search of all sources is aborted with an
+     *               OperationCanceledException when this is cancelled.
+     * @return the merged results, sorted by match rating.
+     */
+    public SearchResultList<SearchResult> search(String query, int max_results, ProgressListener listener,
+                                                 CancellationSignal signal) {
+        // Each source gets its own signal, so that a secondary source can be cancelled by itself
+        // when it runs over its budget. Cancelling the search cancels all of them. A
+        // CancellationSignal has only a single listener, so the signal of the search isn't passed
+        // on itself.
+        CancellationSignal[] source_signals = new CancellationSignal[m_sources.size()];
+        for (int source_nr = 0; source_nr < m_sources.size(); source_nr++) {
+            source_signals[source_nr] = new CancellationSignal();
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(() -> {
+                for (CancellationSignal source_signal : source_signals) source_signal.cancel();
+            });
+        }
+        try {
+            return search(query, max_results, listener, signal, source_signals);
+        } finally {
+            if (signal != null) signal.setOnCancelListener(null);
+        }
+    }
+
+    /**
+     * Perform the search, with a cancellation signal for each source.
+     */
+    private SearchResultList<SearchResult> search(String query, int max_results, ProgressListener listener,
+                                                  CancellationSignal signal, CancellationSignal[] source_signals) {
+        // Start the secondary sources
+        ArrayList<Future<? extends SearchResultList<? extends SearchResult>>> futures = new ArrayList<>();
+        boolean waiting = false;
+        for (int source_nr = 1; source_nr < m_sources.size(); source_nr++) {
+            Source source = m_sources.get(source_nr);
+            CancellationSignal source_signal = source_signals[source_nr];
+            if (query.startsWith(source.prefix)) {
+                futures.add(getExecutorService().submit(() -> source.searcher.search(query, max_results, null, source_signal)));
+                waiting = true;
+            } else {
+                futures.add(null);
+            }
+        }
+
+        // Search the primary source while the others are running
+        ArrayList<SearchResultList<? extends SearchResult>> lists = new ArrayList<>();
+        Source primary = m_sources.get(0);
+        if (query.startsWith(primary.prefix)) {
+            try {
+                lists.add(primary.searcher.search(query, max_results, listener, source_signals[0]));
+            } catch (RuntimeException e) {
+                // Don't leave the other sources running for nothing
+                cancelAll(futures, source_signals);
+                throw e;
+            }
+            if (listener != null && waiting) {
+                // Hand out a snapshot, as the list itself is still needed for the merge
+                SearchResultList<SearchResult> partial = new SearchResultList<>(Math.max(max_results, 1), Math.max(max_results, 1) * query.length());
+                new Merge(lists).addMerged(partial, max_results);
+                listener.onPartialResults(partial);
+            }
+        }
+
+        // Collect the results of the secondary sources within their budgets
+        long primary_done = System.nanoTime();
+        for (int source_nr = 1; source_nr < m_sources.size(); source_nr++) {
+            Future<? extends SearchResultList<? extends SearchResult>> future = futures.get(source_nr - 1);
+            if (future == null) continue;
+            long timeout = m_sources.get(source_nr).budget_ms * 1000000 - (System.nanoTime() - primary_done);
+            try {
+                lists.add(future.get(Math.max(timeout, 0), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                Log.d("AppSearch", "Source " + source_nr + " exceeded its budget, leaving it out");
+                // Stop it, so that it doesn't hold up a thread of the pool
+                source_signals[source_nr].cancel();
+                future.cancel(false);
+            } catch (ExecutionException e) {
+                if (signal != null) signal.throwIfCanceled(); // That's why it failed
+                if (!source_signals[source_nr].isCanceled()) {
+                    Log.d("AppSearch", "Source " + source_nr + " failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                // The whole search is cancelled, so don't bother about the rest
+                cancelAll(futures, source_signals);
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Merge merge = new Merge(lists);
+        SearchResultList<SearchResult> results = new SearchResultList<>(Math.max(max_results, 1), Math.max(max_results, 1) * query.length());
+        merge.addMerged(results, max_results);
+        if (!merge.isDone()) {
+            results.setContinuation(merge);
+        }
+        return results;
+    }
+
+    /**
+     * Cancel the searches of all secondary sources.
+     *
+     * @param futures the searches of the secondary sources
+     * @param source_signals the signals of all sources
+     */
+    private static void cancelAll(ArrayList<Future<? extends SearchResultList<? extends SearchResult>>> futures,
+                                  CancellationSignal[] source_signals) {
+        for (int source_nr = 1; source_nr < source_signals.length; source_nr++) {
+            source_signals[source_nr].cancel();
+            Future<?> future = futures.get(source_nr - 1);
+            if (future != null) future.cancel(false);
+        }
+    }
+
+    /**
+     * @return the thread pool for the secondary sources, which is created on first use.
+     */
+    private static synchronized ExecutorService getExecutorService() {
+        if (m_executor_service == null) {
+            m_executor_service = Executors.newFixedThreadPool(NUM_THREADS);
+        }
+        return m_executor_service;
+    }
+
+    /**
+     * The merge of the ranked result lists of the sources. It's used as the Continuation of an
+     * incomplete result list, to merge the remaining results when they're needed.
+     */
+    private static class Merge implements SearchResultList.Continuation<SearchResult> {
+        private final ArrayList<SearchResultList<? extends SearchResult>> m_lists;
+
+        /** The position of the next result to merge, for each list. */
+        private final int[] m_positions;
+
+        Merge(ArrayList<SearchResultList<? extends SearchResult>> lists) {
+            m_lists     = lists;
+            m_positions = new int[lists.size()];
+        }
+
+        /**
+         * Add the next results to the list, in order of match rating.
+         *
+         * @param list the list to add to
+         * @param max_results the number of results to add, or -1 for all remaining results
+         */
+        void addMerged(SearchResultList<SearchResult> list, int max_results) {
+            int added = 0;
+            while (max_results < 0 || added < max_results) {
+                // Pick the best of the next results of all lists. A list that has run out of
+                // ranked results is completed first, so that it's not skipped.
+                int best = -1;
+                for (int list_nr = 0; list_nr < m_lists.size(); list_nr++) {
+                    SearchResultList<? extends SearchResult> source_list = m_lists.get(list_nr);
+                    if (m_positions[list_nr] == source_list.size()) source_list.complete();
+                    if (m_positions[list_nr] == source_list.size()) continue;
+                    if (best == -1 || source_list.getMatchRating(m_positions[list_nr]) <
+                            m_lists.get(best).getMatchRating(m_positions[best])) {
+                        best = list_nr;
+                    }
+                }
+                if (best == -1) break;
+
+                list.add(m_lists.get(best), m_positions[best]++);
+                added++;
+            }
+        }
+
+        /**
+         * @return true if all results of all lists have been merged.
+         */
+        boolean isDone() {
+            for (int list_nr = 0; list_nr < m_lists.size(); list_nr++) {
+                SearchResultList<? extends SearchResult> source_list = m_lists.get(list_nr);
+                if (m_positions[list_nr] < source_list.size() || !source_list.isComplete()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void addRemaining(SearchResultList<SearchResult> list) {
+            addMerged(list, -1);
+        }
+    }
+}
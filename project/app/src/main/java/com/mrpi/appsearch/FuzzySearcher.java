@@ -1,15 +1,14 @@
 package com.mrpi.appsearch;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Locale;
+import java.util.Arrays;
 
 /**
- * Base class to build fuzzy database searchers on.
+ * Base class to build fuzzy searchers on.
  *
  * A fuzzy search means that names are matches if all letters of the query are present,
  * in the same order, but not necessarily adjacent to each other.
@@ -19,113 +18,625 @@ import java.util.Locale;
  * rating will be. If the query is contained in the name but doesn't start with it, there's an
  * extra penalty of 100.
  *
- * @param <T> The class will eventually return a list of SearchData derived objects of this type.
+ * Queries that are the initials of the words of a name (like "gm" for "Google Maps") are found by a
+ * direct lookup in the index, so these names don't need to be matched. They get a rating of 0, like
+ * names that start with the query, so they go before any match further on in a name.
+ *
+ * The search is performed on a resident NameIndex rather than on the database, so a search never
+ * needs to touch the disk.
+ *
+ * The matches of recent queries are kept in a QueryCache, so that retyping a query after a
+ * backspace doesn't need a new search.
+ *
+ * Since users type one letter at a time, the searcher remembers which entries matched the previous
+ * query. If the new query merely extends the previous one, only these candidates need to be
+ * matched again: a name that didn't match the shorter query can never match the longer one. For
+ * this to be effective, a single searcher instance should be used for consecutive searches. The
+ * searcher also keeps the working arrays of a search, and reuses them for the next one.
+ *
+ * As an alternative way of narrowing down the candidates, a full text search in the database can be
+ * used (see {@link #setUseFullTextSearch(boolean)} and {@link DBHelper#toSearchTokens(String)}).
+ * This is mainly meant to compare both approaches on a device; the results are the same.
+ *
+ * A search can be cancelled through a CancellationSignal, for when its results are no longer
+ * needed. The signal is passed on to the database queries, and the matching loop checks it
+ * regularly (every CANCELLATION_CHECK_INTERVAL candidates), so a cancelled search stops almost
+ * right away by throwing an OperationCanceledException.
+ *
+ * @param <T> The class will eventually return a SearchResultList of SearchResult derived objects
+ *            of this type.
  */
 abstract public class FuzzySearcher<T extends SearchResult> {
     protected Context m_context;
 
+    /** The normalized query of the previous search, or null if there was none. */
+    private String m_last_query = null;
+
+    /** The index that was used for the previous search. */
+    private NameIndex<T> m_last_index = null;
+
+    /** The entries that matched the previous search, in index order. */
+    private int[] m_last_candidates = null;
+    private int m_last_num_candidates = 0;
+
+    /** The number of candidates to match between checks for cancellation. The matching itself
+     *  takes well below a microsecond per candidate. */
+    private static final int CANCELLATION_CHECK_INTERVAL = 64;
+
+    /** The number of recent queries of which the matches are cached, for all searchers. */
+    private static final int MAX_CACHED_QUERIES = 32;
+
+    /** The cache of recent matches. The cached rankings are never used directly, only copies. */
+    private static final QueryCache<Ranking<?>> m_query_cache = new QueryCache<>(MAX_CACHED_QUERIES);
+
+    /** The buffers for the next search, or null while a search is using them. */
+    private Buffers m_buffers = new Buffers();
+
+    /** Whether to narrow down the candidates with a full text search in the database. */
+    private volatile boolean m_use_full_text_search = false;
+
+    /** Match rating up to which a match is good enough to be published as provisional top hit:
+     *  the query is the name or a prefix of it. */
+    private static final int TOP_HIT_RATING = 0;
+
+    /**
+     * Interface for being notified of a provisional top hit, before the search is finished.
+     */
+    public interface TopHitListener {
+        /**
+         * Called on the search thread when a match is found that is good enough to show as the
+         * best match while the search continues. The final results may still have a different
+         * best match.
+         *
+         * @param top_hit a list holding only the top hit
+         */
+        void onTopHit(SearchResultList<? extends SearchResult> top_hit);
+    }
+
     public FuzzySearcher(Context context) {
         m_context = context;
     }
 
     /**
-     * Search the database using queryDB() and sort the results by rating.
+     * Match all names in the index against the query and sort the results by rating.
+     *
+     * Usually, only the first few results are of interest. Therefore, only the best max_results
+     * results are returned in the list; the list is then incomplete and the remaining results are
+     * ranked and added when SearchResultList.complete() is called.
      *
      * @param query the query to search for
+     * @param max_results the number of results to rank up front, or -1 for all results
+     * @param listener if not null, this is notified of the first match that is the query or
+     *                 starts with it, as soon as it's found.
+     * @param signal if not null, the search is aborted with an OperationCanceledException when
+     *               this is cancelled.
      * @return a list of results, sorted primarily by the amount of match between the query and
-     *         the name and secondary by the order in the database.
+     *         the name and secondary by the order in the index.
      */
-    public ArrayList<T> search(String query) {
-        SQLiteDatabase db = DBHelper.getInstance(m_context).getReadableDatabase();
-        ArrayList<T> results_list = queryDB(db, query);
+    public SearchResultList<T> search(String query, int max_results, TopHitListener listener,
+                                      CancellationSignal signal) {
+        NameIndex<T> index = getIndex();
+        String norm_query = NameIndex.searchKey(query);
+        int query_length = norm_query.length();
 
-        // Set the matching characteristics to a fuzzy match
-        for (T result: results_list) {
-            mapToQuery(result, query);
+        // Retyping a recent query gives the same matches, as long as nothing has changed since
+        int generation = QueryCache.getGeneration();
+        Ranking<T> cached = getCachedRanking(index, norm_query);
+        if (cached != null) {
+            rememberCandidates(norm_query, index, cached.m_entries, cached.m_num_matches);
+            long sorting_start = LatencyTracer.begin(LatencyTracer.Stage.SORTING);
+            Buffers buffers = takeBuffers();
+            try {
+                return rankedList(new Ranking<>(cached), max_results, buffers);
+            } finally {
+                returnBuffers(buffers);
+                LatencyTracer.end(LatencyTracer.Stage.SORTING, sorting_start);
+            }
         }
 
-        // Sort by comparing the ratings. If ratings are equal, the order is preserved by sort().
-        // This is needed, because the results are pre-sorted in the database. When two results
-        // have an equal text match, the first one comes out on top.
-        Collections.sort(results_list, new Comparator<T>() {
-            public int compare(T result1, T result2) {
-                return (result1.match_rating - result2.match_rating);
+        // If the query extends the previous one on the same index, we only need to look at the
+        // entries that matched previously. Otherwise (backspace, edits in the middle, a reloaded
+        // index), we need to do a full scan.
+        int[] candidates = null;
+        if (m_use_full_text_search) {
+            long database_start = LatencyTracer.begin(LatencyTracer.Stage.DATABASE);
+            try {
+                candidates = queryFullTextTable(index, norm_query, signal);
+            } finally {
+                LatencyTracer.end(LatencyTracer.Stage.DATABASE, database_start);
             }
-        });
+        }
+        int num_candidates = (candidates != null) ? candidates.length : index.size();
+        synchronized (this) {
+            if (candidates == null && index == m_last_index && m_last_query != null && norm_query.startsWith(m_last_query)) {
+                candidates = m_last_candidates;
+                num_candidates = m_last_num_candidates;
+            }
+        }
+
+        // Set the matching characteristics to a fuzzy match for all names that match. Names that
+        // lack any of the characters of the query are skipped using their character mask.
+        // The match data is kept in parallel arrays; the matching positions of each match take up
+        // query_length places in char_matches.
+        Buffers buffers = takeBuffers();
+        try {
+            buffers.ensureMatchCapacity(num_candidates, query_length);
+            int[] matched_entries = buffers.entries;
+            int[] match_ratings = buffers.ratings;
+            int[] char_matches = buffers.char_matches;
+            long[] masks = index.getMasks();
+            long query_mask = NameIndex.charMask(norm_query);
+            int num_matched = 0;
+            long matching_start = LatencyTracer.begin(LatencyTracer.Stage.MATCHING);
+            try {
+                // The names of which the query is the initials are looked up directly. A match on
+                // initials is a fuzzy match as well, so they're among the candidates; since both
+                // are in index order, they can be picked out while going through the candidates.
+                int[] initials_entries = index.getInitialsMatches(norm_query);
+                int next_initials = 0;
+                for (int candidate = 0; candidate < num_candidates; candidate++) {
+                    if (signal != null && candidate % CANCELLATION_CHECK_INTERVAL == 0) {
+                        signal.throwIfCanceled();
+                    }
+                    int entry = (candidates != null) ? candidates[candidate] : candidate;
+                    int match_rating = NO_MATCH;
+                    if (initials_entries != null) {
+                        while (next_initials < initials_entries.length && initials_entries[next_initials] < entry) {
+                            next_initials++;
+                        }
+                        if (next_initials < initials_entries.length && initials_entries[next_initials] == entry) {
+                            match_rating = mapToInitials(index, entry, norm_query, char_matches, num_matched * query_length);
+                        }
+                    }
+                    if (match_rating == NO_MATCH) {
+                        if ((masks[entry] & query_mask) != query_mask) continue;
+                        match_rating = mapToQuery(index, entry, norm_query, char_matches, num_matched * query_length);
+                    }
+                    if (match_rating != NO_MATCH) {
+                        if (listener != null && match_rating <= TOP_HIT_RATING) {
+                            // Since the index is in order of preference, this is likely the best match
+                            SearchResultList<T> top_hit = new SearchResultList<>(1, query_length);
+                            top_hit.add(index.getResult(entry), match_rating, char_matches, num_matched * query_length, query_length);
+                            listener.onTopHit(top_hit);
+                            listener = null;
+                        }
+                        matched_entries[num_matched] = entry;
+                        match_ratings[num_matched] = match_rating;
+                        num_matched++;
+                    }
+                }
+            } finally {
+                LatencyTracer.end(LatencyTracer.Stage.MATCHING, matching_start);
+            }
+
+            long sorting_start = LatencyTracer.begin(LatencyTracer.Stage.SORTING);
+            try {
+                // The ranking outlives this search, in the cache, as the candidates for the next
+                // search and as the continuation of the result list, so it gets its own copy of
+                // the matches
+                Ranking<T> ranking = new Ranking<>(index, Arrays.copyOf(matched_entries, num_matched),
+                        Arrays.copyOf(match_ratings, num_matched), num_matched,
+                        Arrays.copyOf(char_matches, num_matched * query_length), query_length);
+                rememberCandidates(norm_query, index, ranking.m_entries, num_matched);
+                m_query_cache.put(getClass().getName(), norm_query, generation, ranking);
+                return rankedList(new Ranking<>(ranking), max_results, buffers);
+            } finally {
+                LatencyTracer.end(LatencyTracer.Stage.SORTING, sorting_start);
+            }
+        } finally {
+            returnBuffers(buffers);
+        }
+    }
+
+    /**
+     * Take the buffers of this searcher for a search. If another search on this searcher is still
+     * using them, fresh ones are created.
+     *
+     * @return the buffers, which should be given back with returnBuffers().
+     */
+    private synchronized Buffers takeBuffers() {
+        Buffers buffers = m_buffers;
+        m_buffers = null;
+        return (buffers != null) ? buffers : new Buffers();
+    }
+
+    /**
+     * Give back the buffers after a search, for reuse by the next search.
+     *
+     * @param buffers the buffers from takeBuffers()
+     */
+    private synchronized void returnBuffers(Buffers buffers) {
+        m_buffers = buffers;
+    }
+
+    /**
+     * Remember the matches of a search as the candidates for the next search.
+     *
+     * @param norm_query the normalized query
+     * @param index the index that was searched
+     * @param matched_entries the entries that matched, in index order
+     * @param num_matched the number of entries that matched
+     */
+    private synchronized void rememberCandidates(String norm_query, NameIndex<T> index,
+                                                 int[] matched_entries, int num_matched) {
+        m_last_query          = norm_query;
+        m_last_index          = index;
+        m_last_candidates     = matched_entries;
+        m_last_num_candidates = num_matched;
+    }
+
+    /**
+     * Look up the matches of a query in the cache.
+     *
+     * @param index the index that is searched
+     * @param norm_query the normalized query
+     * @return the ranking of the matches, or null if it isn't cached for this index.
+     */
+    @SuppressWarnings("unchecked")
+    private Ranking<T> getCachedRanking(NameIndex<T> index, String norm_query) {
+        // Rankings of an index that has been replaced since can't be used
+        return (Ranking<T>) m_query_cache.get(getClass().getName(), norm_query, cached -> cached.m_index == index);
+    }
 
+    /**
+     * Create the result list for a ranking. Only the best results are ranked right away; the rest
+     * is ranked when it's needed.
+     *
+     * @param ranking the ranking of the matches, which shouldn't have been used yet
+     * @param max_results the number of results to rank up front, or -1 for all results
+     * @param buffers the buffers to rank with
+     * @return the result list
+     */
+    private SearchResultList<T> rankedList(Ranking<T> ranking, int max_results, Buffers buffers) {
+        int num_matched = ranking.m_num_matches;
+        int num_results = (max_results > 0) ? Math.min(max_results, num_matched) : num_matched;
+        SearchResultList<T> results_list = new SearchResultList<>(num_results, num_results * ranking.m_query_length);
+        ranking.addRanked(results_list, 0, num_results, buffers);
+        if (num_results < num_matched) {
+            results_list.setContinuation(ranking);
+        }
         return results_list;
     }
 
     /**
-     * Derived classes should implement this method to search the database for the given query.
-     * Basically, this method should query the right db tables and fields and convert the results
-     * to a T instance.
+     * Match all names in the index against the query and return all results, sorted by rating.
+     *
+     * @param query the query to search for
+     * @return a complete list of results (see search(String, int))
+     */
+    public SearchResultList<T> search(String query) {
+        return search(query, -1, null, null);
+    }
+
+    /**
+     * Derived classes should implement this method to provide the index to search in.
+     *
+     * @return the NameIndex holding the names to match against
+     */
+    abstract protected NameIndex<T> getIndex();
+
+    /**
+     * Derived classes should implement this method to provide the full text search table that
+     * corresponds to the index.
+     *
+     * @return the name of the full text search table in the database
+     */
+    abstract protected String getFullTextTable();
+
+    /**
+     * Set whether the candidates for a search should be narrowed down by a full text search in
+     * the database, instead of using the candidates of the previous search.
+     *
+     * @param use_full_text_search true to use the full text search.
+     */
+    public void setUseFullTextSearch(boolean use_full_text_search) {
+        m_use_full_text_search = use_full_text_search;
+    }
+
+    /**
+     * Find the entries whose names contain all the letters and digits of the query, using the full
+     * text search table.
+     *
+     * @param index the index to look up the entries in
+     * @param query the normalized query
+     * @param signal the cancellation signal for the query, or null
+     * @return the entries in index order, or null if the query has no letters or digits to search
+     *         for.
+     */
+    private int[] queryFullTextTable(NameIndex<T> index, String query, CancellationSignal signal) {
+        String tokens = DBHelper.toSearchTokens(query);
+        if (tokens.isEmpty()) return null;
+
+        Cursor cursor = DBHelper.getInstance(m_context).getAccess().queryFullText(getFullTextTable(), tokens, signal);
+        int[] entries;
+        int num_entries = 0;
+        try {
+            entries = new int[cursor.getCount()];
+            boolean result = cursor.moveToFirst();
+            while (result) {
+                // Rows that are not in the index (yet) are skipped
+                int entry = index.getEntry(cursor.getLong(0));
+                if (entry != -1) entries[num_entries++] = entry;
+                result = cursor.moveToNext();
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d("AppSearch", "Full text search found " + num_entries + " candidates");
+
+        Arrays.sort(entries, 0, num_entries);
+        return Arrays.copyOf(entries, num_entries);
+    }
+
+    /** Match rating to indicate that the name doesn't match the query at all. */
+    static final int NO_MATCH = Integer.MAX_VALUE;
+
+    /** Match rating for queries that are the initials of a name: as good as a name that starts
+     *  with the query, and better than the query anywhere else in the name. */
+    private static final int INITIALS_MATCH_RATING = 0;
+
+    /** Ratings from -1 up to this value get their own bucket when ranking. Higher ratings (only
+     *  possible for extremely long names) share a single overflow bucket. */
+    private static final int MAX_BUCKET_RATING = 1100;
+
+    /** The number of buckets: one for each rating from -1 up to MAX_BUCKET_RATING, and the
+     *  overflow bucket. */
+    private static final int NUM_BUCKETS = MAX_BUCKET_RATING + 3;
+
+    /**
+     * The working arrays of a search, which are kept by the searcher so that typing doesn't
+     * allocate arrays in proportion to the number of names. They only grow.
+     */
+    private static class Buffers {
+        /** The match data, like in Ranking. */
+        int[] entries = new int[0];
+        int[] ratings = new int[0];
+        int[] char_matches = new int[0];
+
+        /** For ranking: the first rank of each bucket, the ranked matches, and the sort keys of
+         *  the overflow bucket. */
+        final int[] bucket_ranks = new int[NUM_BUCKETS + 1];
+        int[] ranked = new int[0];
+        long[] sort_keys = new long[0];
+
+        /**
+         * Make sure the match data has room for all candidates.
+         *
+         * @param num_candidates the number of candidates
+         * @param query_length the length of the query
+         */
+        void ensureMatchCapacity(int num_candidates, int query_length) {
+            if (entries.length < num_candidates) {
+                entries = new int[num_candidates];
+                ratings = new int[num_candidates];
+            }
+            if (char_matches.length < num_candidates * query_length) {
+                char_matches = new int[num_candidates * query_length];
+            }
+        }
+    }
+
+    /**
+     * The ranking of the matches of a single search.
      *
-     * @param db the database object to perform the search on
-     * @param query the query to search on. Use formatQueryForDB() to get a version to use in the
-     *              SQL statement
-     * @return an ArrayList containing the search results
+     * Since the match ratings are small numbers, the matches can be ranked with a counting sort in
+     * linear time: the matches are distributed over buckets by rating, in index order, which keeps
+     * equal ratings in index order as well. Only the matches that fall within the requested range
+     * of ranks are actually added to the list.
+     *
+     * The ranking is used as the Continuation of an incomplete result list, to add the remaining
+     * results when they're needed.
      */
-    abstract protected ArrayList<T> queryDB(SQLiteDatabase db, String query);
+    private static class Ranking<T extends SearchResult> implements SearchResultList.Continuation<T> {
+        private final NameIndex<T> m_index;
+        private final int[] m_entries;
+        private final int[] m_ratings;
+        private final int m_num_matches;
+        private final int[] m_char_matches;
+        private final int m_query_length;
+
+        /** The number of ranks that have been added to the list so far. */
+        private int m_added = 0;
+
+        Ranking(NameIndex<T> index, int[] entries, int[] ratings, int num_matches,
+                int[] char_matches, int query_length) {
+            m_index        = index;
+            m_entries      = entries;
+            m_ratings      = ratings;
+            m_num_matches  = num_matches;
+            m_char_matches = char_matches;
+            m_query_length = query_length;
+        }
+
+        /**
+         * Create a fresh copy of a ranking, sharing the (read-only) match data.
+         *
+         * @param other the ranking to copy
+         */
+        Ranking(Ranking<T> other) {
+            this(other.m_index, other.m_entries, other.m_ratings, other.m_num_matches,
+                    other.m_char_matches, other.m_query_length);
+        }
+
+        /**
+         * Add the matches with a rank in the given range to the list, in order of rank.
+         *
+         * @param list the list to add the results to
+         * @param from the first rank to add
+         * @param to the rank after the last rank to add
+         * @param buffers the buffers to rank with
+         */
+        void addRanked(SearchResultList<T> list, int from, int to, Buffers buffers) {
+            if (from >= to) return;
+
+            // Count the matches in each bucket, and turn this into the first rank of each bucket.
+            // Bucket 0 is for rating -1, and the last bucket is the overflow bucket.
+            int[] bucket_ranks = buffers.bucket_ranks;
+            Arrays.fill(bucket_ranks, 0);
+            for (int match = 0; match < m_num_matches; match++) {
+                bucket_ranks[bucket(m_ratings[match]) + 1]++;
+            }
+            for (int bucket = 1; bucket <= NUM_BUCKETS; bucket++) {
+                bucket_ranks[bucket] += bucket_ranks[bucket - 1];
+            }
+
+            // Distribute the matches over the ranks, keeping only the ones we need
+            if (buffers.ranked.length < to - from) buffers.ranked = new int[to - from];
+            int[] ranked = buffers.ranked;
+            int overflow_start = bucket_ranks[NUM_BUCKETS - 1];
+            for (int match = 0; match < m_num_matches; match++) {
+                int bucket = bucket(m_ratings[match]);
+                if (bucket == NUM_BUCKETS - 1) continue;
+                int rank = bucket_ranks[bucket]++;
+                if (rank >= from && rank < to) ranked[rank - from] = match;
+            }
+
+            // The overflow bucket is not ordered by rating yet, so sort it if we need it. Like in
+            // the buckets, equal ratings should stay in index order.
+            if (to > overflow_start) {
+                if (buffers.sort_keys.length < m_num_matches - overflow_start) {
+                    buffers.sort_keys = new long[m_num_matches - overflow_start];
+                }
+                long[] sort_keys = buffers.sort_keys;
+                int num_overflow = 0;
+                for (int match = 0; match < m_num_matches; match++) {
+                    if (bucket(m_ratings[match]) == NUM_BUCKETS - 1) {
+                        sort_keys[num_overflow++] = ((long) m_ratings[match] << 32) | match;
+                    }
+                }
+                Arrays.sort(sort_keys, 0, num_overflow);
+                for (int rank = Math.max(from, overflow_start); rank < to; rank++) {
+                    ranked[rank - from] = (int) sort_keys[rank - overflow_start];
+                }
+            }
+
+            for (int rank = 0; rank < to - from; rank++) {
+                int match = ranked[rank];
+                list.add(m_index.getResult(m_entries[match]), m_ratings[match],
+                        m_char_matches, match * m_query_length, m_query_length);
+            }
+            m_added = to;
+        }
+
+        private static int bucket(int rating) {
+            return Math.min(rating, MAX_BUCKET_RATING + 1) + 1;
+        }
+
+        @Override
+        public void addRemaining(SearchResultList<T> list) {
+            // This may run on another thread, long after the search, so it can't use the buffers
+            // of the searcher
+            addRanked(list, m_added, m_num_matches, new Buffers());
+        }
+    }
 
     /**
-     * Build a query that can be used on the database for fuzzy SQL statements.
+     * Determine the match rating and matching characters of an index entry that was found by the
+     * initials lookup, without matching the name. The matching characters are the starts of the
+     * words.
      *
-     * @param query the normal query
-     * @return the same query with percent characters between each letter, which can be used for
-     *         fuzzy searching with SQL.
+     * @param index the index holding the name
+     * @param entry the entry number in the index
+     * @param query the normalized query, which should be the initials of the name
+     * @param char_matches an array that will be filled with the positions of the matching
+     *                     characters.
+     * @param from the position in char_matches to start writing; there should be room for as
+     *             many positions as the query length.
+     * @return the match rating, or NO_MATCH if the words of the name don't start with the query
+     *         characters after all.
      */
-    protected String formatQueryForDB(String query) {
-        String formatted_query = "%";
-        for (int pos = 0; pos < query.length(); pos++) formatted_query += query.charAt(pos) + "%";
-        return formatted_query;
+    private int mapToInitials(NameIndex<T> index, int entry, String query, int[] char_matches, int from) {
+        // Make sure the index is consistent before relying on it
+        char[] keys = index.getKeys();
+        int offset = index.getKeyOffset(entry);
+        for (int word = 0; word < query.length(); word++) {
+            int key_pos = index.getWordStart(entry, word);
+            if (key_pos == -1 || keys[offset + key_pos] != query.charAt(word)) return NO_MATCH;
+            char_matches[from + word] = index.getNamePosition(entry, key_pos);
+        }
+
+        // If there's nothing but the initials, the query is the name itself
+        return (index.getKeyLength(entry) == query.length()) ? -1 : INITIALS_MATCH_RATING;
     }
 
     /**
-     * Set the match rating and matching characters of a match according to the fuzzy search rules.
+     * Determine the match rating and matching characters of an index entry according to the fuzzy
+     * search rules.
+     *
+     * The match is done on the search key of the name, so the query should already be normalized
+     * in the same way (see NameIndex.searchKey()). Using the next-occurrence tables of the index,
+     * the time this takes is proportional to the length of the query rather than to the length of
+     * the name. The matching positions are reported in the original name, for highlighting.
      *
-     * The match is done case insensitive.
+     * This is package private so that the tests can compare it with a plain scan of the key.
      *
-     * @param search_result the search result of which the match parameters need to be set
-     * @param query a short string of characters to match against the name.
+     * @param index the index holding the name
+     * @param entry the entry number in the index
+     * @param query a short normalized string to match against the name.
+     * @param char_matches an array that will be filled with the positions of the matching
+     *                     characters.
+     * @param from the position in char_matches to start writing; there should be room for as
+     *             many positions as the query length.
+     * @return the match rating, or NO_MATCH if the name doesn't match the query.
      */
-    private void mapToQuery(T search_result, String query) {
-        ArrayList<Integer> char_matches = new ArrayList<>();
-        int match_rating = 1000;
-        String norm_name = search_result.name.toLowerCase(Locale.US);
+    int mapToQuery(NameIndex<T> index, int entry, String query, int[] char_matches, int from) {
+        int length = index.getKeyLength(entry);
+        int query_length = query.length();
+        if (query_length == 0) {
+            // Only possible if the query consisted of diacritics only; it's contained in any name
+            return (length == 0) ? -1 : 0;
+        }
+
+        // Find the first occurrence of each query character after the previous one. If we run out
+        // of name, it doesn't match. Until the end, positions are in the search key.
+        int name_pos = -1;
+        for (int query_pos = 0; query_pos < query_length; query_pos++) {
+            name_pos = index.nextOccurrence(entry, name_pos + 1, query.charAt(query_pos));
+            if (name_pos == length) return NO_MATCH;
+            char_matches[from + query_pos] = name_pos;
+        }
 
-        int index = norm_name.indexOf(query);
-        if (index != -1) {
-            if ((index == 0) && (query.length() == norm_name.length())) {
+        // Check if the query is contained as a whole in the name. This can only start at an
+        // occurrence of the first query character, the first of which we've just found.
+        char[] keys = index.getKeys();
+        int offset = index.getKeyOffset(entry);
+        int index_of = -1;
+        int start = char_matches[from];
+        while (index_of == -1 && start + query_length <= length) {
+            int pos = 1;
+            while (pos < query_length && keys[offset + start + pos] == query.charAt(pos)) {
+                pos++;
+            }
+            if (pos == query_length) {
+                index_of = start;
+            } else {
+                start = index.nextOccurrence(entry, start + 1, query.charAt(0));
+            }
+        }
+
+        int match_rating;
+        if (index_of != -1) {
+            if ((index_of == 0) && (query_length == length)) {
                 match_rating = -1; // Query is app name; we're golden!
             } else {
-                match_rating = index; // Rating is the number of chars in front of the query.
+                match_rating = index_of; // Rating is the number of chars in front of the query.
             }
             // Mark the matching characters
-            for (int i = index; i < (index + query.length()); i++) {
-                char_matches.add(i);
+            for (int i = 0; i < query_length; i++) {
+                char_matches[from + i] = index_of + i;
             }
         } else {
-            int rating = 100; // Query is not contained as whole in app name, which
-            // means results should sink to the bottom. Therefore
-            // the rating gets a penalty of 100.
-            int name_pos = -1;
-            char query_char, name_char;
-            for (int query_pos = 0; query_pos < query.length(); query_pos++) {
-                name_pos += 1;
-                query_char = query.charAt(query_pos);
-                name_char = norm_name.charAt(name_pos);
-                while (name_char != query_char) {
-                    rating += 1;
-                    name_pos += 1;
-                    name_char = norm_name.charAt(name_pos);
-                }
-                char_matches.add(name_pos);
-            }
-            match_rating = rating;
+            // Query is not contained as whole in app name, which means results should sink to the
+            // bottom. Therefore the rating gets a penalty of 100, plus one for each character that
+            // was skipped between the matching characters.
+            match_rating = 100 + (name_pos + 1 - query_length);
+        }
+
+        // Map the matching characters back to the name
+        for (int i = 0; i < query_length; i++) {
+            char_matches[from + i] = index.getNamePosition(entry, char_matches[from + i]);
         }
 
-        search_result.match_rating = match_rating;
-        search_result.char_matches = char_matches;
+        return match_rating;
     }
 }
@@ -0,0 +1,200 @@
+package com.mrpi.appsearch;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashMap;
+
+/**
+ * App wide cache for the icons of apps, so that they don't need to be loaded from their packages
+ * each time a result row is bound, the top hit is shown or the widget is updated.
+ *
+ * Icons are rendered once to a bitmap, and kept in an LRU cache that is bounded by the number of
+ * bytes of these bitmaps. They are keyed by package name and the lastUpdateTime of the package, so
+ * an updated app never gets its old icon. The update time of each package is looked up once and
+ * then remembered, until AppChangedReceiver reports that the package has changed (see
+ * {@link #invalidate(String)}).
+ *
+ * Icons that are not in the cache are read from the IconStore on disk if possible, which is much
+ * faster than loading them from their package.
+ *
+ * All methods are thread safe.
+ */
+public class IconCache {
+
+    /** The part of the maximum heap size that the cache may use. */
+    private static final int HEAP_FRACTION = 16;
+
+    // The rendered icons, keyed by package name and update time
+    private static LruCache<String, Bitmap> m_icons;
+
+    // The known update time of each package, as used in the keys
+    private static final HashMap<String, Long> m_update_times = new HashMap<>();
+
+    /**
+     * Get the icon of an app.
+     *
+     * @param context the application context
+     * @param package_name the package name of the app
+     * @return a new Drawable for the icon, or null if the app isn't installed (anymore).
+     */
+    public static Drawable getIcon(Context context, String package_name) {
+        Bitmap bitmap = getBitmap(context, package_name);
+        if (bitmap == null) {
+            return null;
+        }
+        // Drawables have state (like their bounds), so each user gets its own one
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+    /**
+     * Get the icon of an app only if it's in the cache already. This is fast enough to call on the
+     * UI thread.
+     *
+     * @param context the application context
+     * @param package_name the package name of the app
+     * @return a new Drawable for the icon, or null if it's not in the cache.
+     */
+    public static Drawable peekIcon(Context context, String package_name) {
+        Long update_time;
+        synchronized (IconCache.class) {
+            update_time = m_update_times.get(package_name);
+        }
+        if (update_time == null) {
+            return null;
+        }
+        Bitmap bitmap = getIcons().get(getKey(package_name, update_time));
+        if (bitmap == null) {
+            return null;
+        }
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+    /**
+     * Get the icon of an app as a bitmap. The bitmap is shared, so it should not be modified.
+     *
+     * @param context the application context
+     * @param package_name the package name of the app
+     * @return the icon, or null if the app isn't installed (anymore).
+     */
+    public static Bitmap getBitmap(Context context, String package_name) {
+        PackageManager package_manager = context.getPackageManager();
+
+        // Find the key of the icon, which needs the update time of the package
+        Long update_time;
+        PackageInfo package_info = null;
+        synchronized (IconCache.class) {
+            update_time = m_update_times.get(package_name);
+        }
+        if (update_time == null) {
+            try {
+                package_info = package_manager.getPackageInfo(package_name, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+            update_time = package_info.lastUpdateTime;
+            synchronized (IconCache.class) {
+                m_update_times.put(package_name, update_time);
+            }
+        }
+        String key = getKey(package_name, update_time);
+        Bitmap bitmap = getIcons().get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        // Not in the cache, so read it from the store, or else load and render it
+        bitmap = IconStore.read(context, package_name, update_time);
+        if (bitmap != null) {
+            getIcons().put(key, bitmap);
+            return bitmap;
+        }
+        Drawable icon;
+        try {
+            if (package_info != null) {
+                icon = package_info.applicationInfo.loadIcon(package_manager);
+            } else {
+                icon = package_manager.getApplicationIcon(package_name);
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            invalidate(package_name);
+            return null;
+        }
+        bitmap = render(context, icon);
+        getIcons().put(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Drop the icon of a package, because it was updated, changed or removed.
+     *
+     * @param package_name the package name of the app
+     */
+    public static void invalidate(String package_name) {
+        Long update_time;
+        synchronized (IconCache.class) {
+            update_time = m_update_times.remove(package_name);
+        }
+        if (update_time != null) {
+            getIcons().remove(getKey(package_name, update_time));
+        }
+    }
+
+    /**
+     * @return a human readable summary of the size and hit rate of the cache.
+     */
+    public static String getStatistics() {
+        LruCache<String, Bitmap> icons = getIcons();
+        return "Icon cache: " + icons.size() / 1024 + " of " + icons.maxSize() / 1024 + " kB, " +
+                icons.hitCount() + " hits, " + icons.missCount() + " misses";
+    }
+
+    /**
+     * @return the cache of the rendered icons, which is created on first use.
+     */
+    private static synchronized LruCache<String, Bitmap> getIcons() {
+        if (m_icons == null) {
+            int max_bytes = (int) Math.min(Runtime.getRuntime().maxMemory() / HEAP_FRACTION, Integer.MAX_VALUE);
+            m_icons = new LruCache<String, Bitmap>(max_bytes) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+            Log.d("AppSearch", "Created icon cache of " + max_bytes / 1024 + " kB");
+        }
+        return m_icons;
+    }
+
+    private static String getKey(String package_name, long update_time) {
+        return package_name + "@" + update_time;
+    }
+
+    /**
+     * Render an icon to a bitmap, at its own size or at the launcher icon size if it has none.
+     *
+     * @param context the application context
+     * @param icon the icon to render
+     * @return the rendered icon
+     */
+    private static Bitmap render(Context context, Drawable icon) {
+        if (icon instanceof BitmapDrawable && ((BitmapDrawable) icon).getBitmap() != null) {
+            return ((BitmapDrawable) icon).getBitmap();
+        }
+        int default_size = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+        int width = (icon.getIntrinsicWidth() > 0) ? icon.getIntrinsicWidth() : default_size;
+        int height = (icon.getIntrinsicHeight() > 0) ? icon.getIntrinsicHeight() : default_size;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        return bitmap;
+    }
+}
@@ -0,0 +1,263 @@
+package com.mrpi.appsearch;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Store on disk with the icons of all apps, pre-rendered at the launcher icon size, so that after
+ * a cold start the icons don't need to be loaded through the PackageManager again.
+ *
+ * All icons are packed in a single file, which is memory mapped for reading:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   int     the icon size in pixels
+ *   int     the length of the table in bytes
+ *   table:  int     the number of icons
+ *           and for each icon:
+ *           UTF     the package name
+ *           long    the lastUpdateTime of the package when the icon was rendered
+ *           int     the offset of the icon in the data
+ *           int     the length of the icon
+ *   data:   the icons, as PNG
+ *
+ * The file is rewritten by AppIndexService after each indexing run (see {@link #update(Context,
+ * List)}). Icons of packages that weren't updated since are copied over as they are, so only new
+ * and updated apps need to be rendered. When reading, an icon is only used if the update time of
+ * its package still matches, so an updated app never gets its old icon.
+ *
+ * All methods are thread safe.
+ */
+public class IconStore {
+
+    private static final String FILE_NAME = "icons.pack";
+    private static final int MAGIC = 0x49434f4e; // "ICON"
+    private static final int VERSION = 1;
+
+    /** The location of an icon in the file. */
+    private static class Entry {
+        final long update_time;
+        final int offset;
+        final int length;
+
+        Entry(long update_time, int offset, int length) {
+            this.update_time = update_time;
+            this.offset      = offset;
+            this.length      = length;
+        }
+    }
+
+    // The table of the opened file, or null if it hasn't been opened yet
+    private static HashMap<String, Entry> m_entries;
+
+    // The memory mapped file, positioned at the start of the data
+    private static ByteBuffer m_data;
+
+    /**
+     * Read the icon of an app.
+     *
+     * @param context the application context
+     * @param package_name the package name of the app
+     * @param update_time the current lastUpdateTime of the package
+     * @return the icon, or null if it's not in the store or is outdated.
+     */
+    public static Bitmap read(Context context, String package_name, long update_time) {
+        byte[] png;
+        synchronized (IconStore.class) {
+            png = getPng(context, package_name, update_time);
+        }
+        if (png == null) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(png, 0, png.length);
+    }
+
+    /**
+     * Rewrite the store for a list of apps. Icons that are still up to date are kept, the others
+     * are rendered again.
+     *
+     * @param context the application context
+     * @param apps the apps to store the icons of. Apps that are not in this list are dropped.
+     */
+    public static void update(Context context, List<AppSearchResult> apps) {
+        PackageManager package_manager = context.getPackageManager();
+        int icon_size = getIconSize(context);
+
+        // Collect the icons, reusing the stored ones if possible
+        HashMap<String, Entry> entries = new HashMap<>();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int num_rendered = 0;
+        for (AppSearchResult app : apps) {
+            if (entries.containsKey(app.package_name)) continue; // Apps can have more activities
+
+            PackageInfo package_info;
+            try {
+                package_info = package_manager.getPackageInfo(app.package_name, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                continue;
+            }
+            byte[] png;
+            synchronized (IconStore.class) {
+                png = getPng(context, app.package_name, package_info.lastUpdateTime);
+            }
+            if (png == null) {
+                png = render(package_info.applicationInfo.loadIcon(package_manager), icon_size);
+                num_rendered++;
+            }
+            entries.put(app.package_name, new Entry(package_info.lastUpdateTime, data.size(), png.length));
+            data.write(png, 0, png.length);
+        }
+
+        // Write it to a temporary file first, so that readers never see a half-written one
+        File file = getFile(context);
+        File tmp_file = new File(file.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream table_out = new DataOutputStream(table);
+            table_out.writeInt(entries.size());
+            for (HashMap.Entry<String, Entry> entry : entries.entrySet()) {
+                table_out.writeUTF(entry.getKey());
+                table_out.writeLong(entry.getValue().update_time);
+                table_out.writeInt(entry.getValue().offset);
+                table_out.writeInt(entry.getValue().length);
+            }
+            table_out.close();
+
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp_file));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(icon_size);
+                out.writeInt(table.size());
+                table.writeTo(out);
+                data.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.d("AppSearch", "Can't write the icon store", e);
+            tmp_file.delete();
+            return;
+        }
+
+        synchronized (IconStore.class) {
+            if (!tmp_file.renameTo(file)) {
+                Log.d("AppSearch", "Can't replace the icon store");
+                tmp_file.delete();
+            }
+            // Open the new file on the next read
+            m_entries = null;
+            m_data = null;
+        }
+        Log.d("AppSearch", "Icon store updated: " + entries.size() + " icons, " + num_rendered + " rendered");
+    }
+
+    /**
+     * Get the stored PNG of an icon. The caller should hold the lock on IconStore.class.
+     *
+     * @return the PNG, or null if it's not in the store or is outdated.
+     */
+    private static byte[] getPng(Context context, String package_name, long update_time) {
+        if (m_entries == null) {
+            open(context);
+        }
+        Entry entry = m_entries.get(package_name);
+        if (entry == null || entry.update_time != update_time ||
+                entry.offset + entry.length > m_data.remaining()) {
+            return null;
+        }
+        byte[] png = new byte[entry.length];
+        ByteBuffer data = m_data.duplicate();
+        data.position(data.position() + entry.offset);
+        data.get(png);
+        return png;
+    }
+
+    /**
+     * Map the file and read its table. If there's no valid file, the store is empty. The caller
+     * should hold the lock on IconStore.class.
+     */
+    private static void open(Context context) {
+        m_entries = new HashMap<>();
+        m_data = null;
+        File file = getFile(context);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            ByteBuffer buffer;
+            try {
+                // The mapping stays valid after the file is closed
+                buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                in.close();
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                    buffer.getInt() != getIconSize(context)) {
+                // Another format, or rendered for another display
+                return;
+            }
+            byte[] table = new byte[buffer.getInt()];
+            buffer.get(table);
+
+            HashMap<String, Entry> entries = new HashMap<>();
+            DataInputStream table_in = new DataInputStream(new ByteArrayInputStream(table));
+            int num_entries = table_in.readInt();
+            for (int entry_nr = 0; entry_nr < num_entries; entry_nr++) {
+                String package_name = table_in.readUTF();
+                entries.put(package_name, new Entry(table_in.readLong(), table_in.readInt(), table_in.readInt()));
+            }
+            m_entries = entries;
+            m_data = buffer.slice();
+        } catch (IOException | RuntimeException e) {
+            Log.d("AppSearch", "Can't read the icon store", e);
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    private static int getIconSize(Context context) {
+        return context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Render an icon to a PNG.
+     *
+     * @param icon the icon to render
+     * @param icon_size the width and height in pixels
+     * @return the PNG
+     */
+    private static byte[] render(Drawable icon, int icon_size) {
+        Bitmap bitmap = Bitmap.createBitmap(icon_size, icon_size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, icon_size, icon_size);
+        icon.draw(canvas);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+        bitmap.recycle();
+        return png.toByteArray();
+    }
+}
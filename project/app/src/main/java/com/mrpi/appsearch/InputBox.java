@@ -2,20 +2,20 @@ package com.mrpi.appsearch;
 
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.text.Layout;
 import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
-import android.util.TypedValue;
 import android.widget.EditText;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.util.AttributeSet;
-import android.widget.TextView;
-
-import java.util.ArrayList;
 
 /**
  * EditText widget with custom rendering, which is meant to be used as the main input/search box
@@ -28,22 +28,24 @@ import java.util.ArrayList;
  */
 public class InputBox extends EditText {
 
-    /** The search result that currently best matches to the input. */
+    /** The search result that currently best matches to the input, and the list and position it
+     *  came from (which hold the characters that match). */
     private SearchResult m_matching_result;
+    private SearchResultList<? extends SearchResult> m_matching_results;
+    private int m_matching_position;
 
     /** Whether to render the matching app without highlighting the matched letters. */
     private boolean m_render_clear = false;
 
-    /** The text view holding the rendered text with matching characters highlighted. This is cached
-     *  because onDraw() is called again by Android on each cursor blink */
-    private TextView m_text_view;
+    /** The layout of the rendered text with matching characters highlighted, and the position of
+     *  the cursor. This is cached because onDraw() is called again by Android on each cursor blink,
+     *  so that drawing only needs to draw the cached layout and the cursor. */
+    private Rendering m_rendering = null;
 
     /**
      * Variables needed to paint a blinking cursor.
      */
     Paint.FontMetrics m_font_metrics;   // Font metrics for this EditText
-    private int m_cursor_pos;           // The position in pixels of the cursor. -1 is used to
-                                        // indicate that is should be calculated.
     private boolean m_cursor_on = true; // Whether the cursor currently should be shown or not.
 
     // The Drawable used as text cursor. Note: this should normally be set using the
@@ -61,18 +63,93 @@ public class InputBox extends EditText {
         m_font_metrics = text_paint.getFontMetrics();
     }
 
+    /**
+     * The rendered text of a matching search result, prepared ahead of time by
+     * prepareMatchingSearchResult().
+     */
+    public static class Rendering {
+        private final Layout m_layout;
+        private final int m_cursor_pos;
+
+        private Rendering(Layout layout, int cursor_pos) {
+            m_layout     = layout;
+            m_cursor_pos = cursor_pos;
+        }
+    }
+
+    /**
+     * A copy of the paint and the colors of the text, so that text can be rendered off the UI
+     * thread (see prepareMatchingSearchResult()).
+     */
+    public static class Style {
+        private final TextPaint m_paint;
+        private final int m_text_color;
+        private final int m_hint_color;
+
+        private Style(TextPaint paint, int text_color, int hint_color) {
+            m_paint      = paint;
+            m_text_color = text_color;
+            m_hint_color = hint_color;
+        }
+    }
+
+    /**
+     * Take a snapshot of the paint and the colors of the text. Like the methods of the View, this
+     * should be called on the UI thread.
+     *
+     * @return the style to pass to prepareMatchingSearchResult().
+     */
+    public Style getStyle() {
+        return new Style(new TextPaint(getPaint()), getCurrentTextColor(), getCurrentHintTextColor());
+    }
+
+    /**
+     * Render the text for a matching search result ahead of time. Unlike the other methods, this
+     * may be called on any thread, so the rendering can be done by the search thread. It only
+     * uses the given style, not the View itself.
+     *
+     * @param style the style of the text, from getStyle().
+     * @param search_results the list of search results holding the best match.
+     * @param position the position of the best match in the list.
+     * @return the rendering to pass to setMatchingSearchResult().
+     */
+    public static Rendering prepareMatchingSearchResult(Style style, SearchResultList<? extends SearchResult> search_results,
+                                                        int position) {
+        return renderMatch(style, search_results, position, false);
+    }
+
     /**
      * Set the best matching search result for the input text.
      *
-     * @param search_result the SearchData object for the best match.
+     * @param search_results the list of search results holding the best match, or null if there's
+     *                       no match.
+     * @param position the position of the best match in the list.
      */
-    public void setMatchingSearchResult(SearchResult search_result) {
-        m_matching_result = search_result;
+    public void setMatchingSearchResult(SearchResultList<? extends SearchResult> search_results, int position) {
+        setMatchingSearchResult(search_results, position, null);
+    }
 
-        // Render the new text view and clear the cursor position. Note: we can't calculate the
-        // cursor position yet because we don't have a canvas to draw on.
-        m_text_view = renderText(false);
-        m_cursor_pos = -1;
+    /**
+     * Set the best matching search result for the input text.
+     *
+     * @param search_results the list of search results holding the best match, or null if there's
+     *                       no match.
+     * @param position the position of the best match in the list.
+     * @param rendering the text for this result from prepareMatchingSearchResult(), or null to
+     *                  render it here.
+     */
+    public void setMatchingSearchResult(SearchResultList<? extends SearchResult> search_results, int position,
+                                        Rendering rendering) {
+        m_matching_results = search_results;
+        m_matching_position = position;
+        m_matching_result = (search_results != null) ? search_results.get(position) : null;
+
+        // Render the new text and its cursor position, unless that has been done already
+        if (rendering != null && m_matching_result != null && !m_render_clear) {
+            m_rendering = rendering;
+        } else {
+            renderText();
+        }
         m_cursor_on = true;
 
         invalidate();
@@ -87,16 +164,9 @@ public class InputBox extends EditText {
         if (render_clear != m_render_clear) { // Only redraw if there's a change
             m_render_clear = render_clear;
 
-            // Redraw the text, using the m_render_clear flag
-            m_text_view = renderText(false);
-
-            if (render_clear) {
-                // If we're rendering clear, we know the cursor position should be 0
-                m_cursor_pos = 0;
-            } else {
-                // Otherwise, it needs to be calculated
-                m_cursor_pos = -1;
-            }
+            // Redraw the text, using the m_render_clear flag. If we're rendering clear, the
+            // cursor position will be 0.
+            renderText();
             m_cursor_on = true;
 
             invalidate();
@@ -110,58 +180,94 @@ public class InputBox extends EditText {
      * letters are rendered using the textColor. The warning message is rendered using
      * textColorHighlight.
      *
-     * @param is_capped if true, only render the app name up to the last matching letter.
-     * @return a TextView with the rendered app name.
+     * The result is kept in m_rendering, with the text layout and the position of the cursor:
+     * after the last matching letter, or after the typed text if there's no match.
      */
-    private TextView renderText(boolean is_capped) {
-        TextView text_view = new TextView(getContext());
-
-        // Use the rendering parameters declared for this EditText.
-        text_view.setTypeface(getTypeface());
-        text_view.setTextSize(TypedValue.COMPLEX_UNIT_PX, getTextSize());
-
+    private void renderText() {
         if (m_matching_result != null) {
-            text_view.setTextColor(getCurrentHintTextColor());
-
-            // Set the text
-            ArrayList<Integer> matches = m_matching_result.char_matches;
-            if (is_capped) {
-                if (matches != null && m_render_clear == false) {
-                    int to_pos = matches.get(matches.size() - 1) + 1;
-                    text_view.setText(m_matching_result.name.substring(0, to_pos), BufferType.SPANNABLE);
-                }
-            } else {
-                text_view.setText(m_matching_result.name, BufferType.SPANNABLE);
-            }
-
-            // Highlight matched letters
-            if (m_matching_result.char_matches != null && m_render_clear == false) {
-                Spannable spannable = (Spannable) text_view.getText();
-                for (Integer i : matches) {
-                    spannable.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), i, i + 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    spannable.setSpan(new UnderlineSpan(), i, i + 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    spannable.setSpan(new ForegroundColorSpan(getCurrentTextColor()), i, i + 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
+            m_rendering = renderMatch(getStyle(), m_matching_results, m_matching_position, m_render_clear);
         } else if (getText().length() > 0) {
             // Render a special string to indicate that there's no match (but only if there's actual
             // text typed.
+            SpannableString text = new SpannableString(String.format("%s: %s", getText(), getContext().getString(R.string.no_match)));
+            text.setSpan(new ForegroundColorSpan(getCurrentHintTextColor()), getText().length(), getText().length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new StyleSpan(Typeface.ITALIC), getText().length() + 2, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new ForegroundColorSpan(getHighlightColor()), getText().length() + 2, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            m_rendering = layOut(getPaint(), text, getCurrentTextColor(), getText().length());
+        } else {
+            m_rendering = layOut(getPaint(), "", getCurrentTextColor(), 0);
+        }
+    }
 
-            text_view.setTextColor(getCurrentTextColor());
-
-            if (is_capped) {
-                text_view.setText(getText());
-            } else {
-                text_view.setText(getText());
-                text_view.setText(String.format("%s: %s", getText(), getContext().getString(R.string.no_match)), BufferType.SPANNABLE);
-                Spannable spannable = (Spannable) text_view.getText();
-                spannable.setSpan(new ForegroundColorSpan(getCurrentHintTextColor()), getText().length(), getText().length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                spannable.setSpan(new StyleSpan(Typeface.ITALIC), getText().length() + 2, text_view.getText().length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                spannable.setSpan(new ForegroundColorSpan(getHighlightColor()), getText().length() + 2, text_view.getText().length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    /**
+     * Render the name of a search result, with the matching letters highlighted.
+     *
+     * @param style the style of the text
+     * @param search_results the list of search results
+     * @param position the position of the result in the list
+     * @param render_clear if true, render without highlighting.
+     * @return the rendering
+     */
+    private static Rendering renderMatch(Style style, SearchResultList<? extends SearchResult> search_results,
+                                         int position, boolean render_clear) {
+        SpannableString text = new SpannableString(search_results.get(position).name);
+        int num_matches = search_results.getNumCharMatches(position);
+        int cursor_index = 0;
+
+        // Highlight matched letters. Adjacent letters share their spans.
+        if (num_matches > 0 && !render_clear) {
+            cursor_index = search_results.getCharMatch(position, num_matches - 1) + 1;
+            int match = 0;
+            while (match < num_matches) {
+                int start = search_results.getCharMatch(position, match++);
+                int end = start + 1;
+                while (match < num_matches && search_results.getCharMatch(position, match) == end) {
+                    end++;
+                    match++;
+                }
+                text.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.setSpan(new UnderlineSpan(), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.setSpan(new ForegroundColorSpan(style.m_text_color), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
         }
 
-        return text_view;
+        return layOut(style.m_paint, text, style.m_hint_color, cursor_index);
+    }
+
+    /**
+     * Lay out a text on a single line, as wide as it needs to be.
+     *
+     * @param paint the paint of the text, which is copied to set the color
+     * @param text the text, which may be styled
+     * @param color the color of the unstyled text
+     * @param cursor_index the position in the text of the cursor
+     * @return the rendering
+     */
+    private static Rendering layOut(TextPaint paint, CharSequence text, int color, int cursor_index) {
+        TextPaint text_paint = new TextPaint(paint);
+        text_paint.setColor(color);
+        int width = Math.max((int) Math.ceil(Layout.getDesiredWidth(text, text_paint)), 1);
+        Layout layout;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            layout = StaticLayout.Builder.obtain(text, 0, text.length(), text_paint, width).build();
+        } else {
+            layout = newStaticLayout(text, text_paint, width);
+        }
+        return new Rendering(layout, (int) Math.ceil(layout.getPrimaryHorizontal(cursor_index)));
+    }
+
+    /**
+     * Lay out a text with the StaticLayout constructor, for Android versions before 6.0, which
+     * don't have StaticLayout.Builder.
+     *
+     * @param text the text
+     * @param text_paint the paint of the text
+     * @param width the width of the layout
+     * @return the layout
+     */
+    @SuppressWarnings("deprecation")
+    private static Layout newStaticLayout(CharSequence text, TextPaint text_paint, int width) {
+        return new StaticLayout(text, text_paint, width, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true);
     }
 
     /**
@@ -169,42 +275,41 @@ public class InputBox extends EditText {
      */
     @Override
     public void onDraw(Canvas canvas) {
-        // The actual width of the canvas that we can use
-        int canvas_width = canvas.getWidth() - m_text_padding_left;
+        long start = LatencyTracer.begin(LatencyTracer.Stage.DRAWING);
+        drawText(canvas);
+        LatencyTracer.end(LatencyTracer.Stage.DRAWING, start);
 
-        // If we don't have a cursor position, calculate it by rendering a capped version of the
-        // text and measuring its width..
-        if (m_cursor_pos == -1) {
-            TextView cursor_text = renderText(true);
-            cursor_text.measure(canvas.getWidth(), canvas.getHeight());
-            m_cursor_pos = cursor_text.getMeasuredWidth();
-        }
+        // This is the frame that shows the results of the latest search, if they're in
+        LatencyTracer.frameDrawn();
+    }
 
-        if (m_text_view.getWidth() == 0) {
-            m_text_view.measure(canvas.getWidth(), canvas.getHeight());
+    /**
+     * Draw the cached text and the cursor.
+     *
+     * @param canvas the canvas to draw on
+     */
+    private void drawText(Canvas canvas) {
+        if (m_rendering == null) return; // Nothing to show yet
 
-            // If the cursor falls outside of the viewport, we will shift the canvas left in the
-            // next step, so that it's still visible, but we have to use a larger size to accomodate
-            // the extra space.
-            int width = (m_cursor_pos + m_text_padding_left > canvas_width) ? m_cursor_pos + m_text_padding_left : canvas_width;
-            m_text_view.layout(0, 0, width, canvas.getHeight());
-        }
+        // The actual width of the canvas that we can use, and the position in pixels of the cursor
+        int canvas_width = canvas.getWidth() - m_text_padding_left;
+        int cursor_pos = m_rendering.m_cursor_pos;
 
         // Position the canvas; add some space to the left, unless the cursor falls outside the
         // viewport, in which case we will shift the text as far left as needed to make the cursor
         // visible again.
-        if (m_cursor_pos > canvas_width) {
+        if (cursor_pos > canvas_width) {
             // Note: using canvas_width instead of canvas.getWidth() actually shifts the canvas too
             // much left, by an amount of m_text_padding_left. It works out because we need a
             // little bit of extra space to the right so the cursor doesn't touch the edge.
-            canvas.translate(canvas_width - m_cursor_pos, 0);
+            canvas.translate(canvas_width - cursor_pos, 0);
         } else {
             canvas.translate(m_text_padding_left, 0);
         }
 
         // Render the cursor
         if (m_cursor_on) {
-            int left = m_cursor_pos;
+            int left = cursor_pos;
             m_cursor_drawable.setBounds(left, (int) m_font_metrics.descent, left + m_cursor_drawable.getIntrinsicWidth(), (int) (m_font_metrics.descent - m_font_metrics.ascent));
             m_cursor_drawable.draw(canvas);
             m_cursor_on = false;
@@ -212,6 +317,6 @@ public class InputBox extends EditText {
             m_cursor_on = true;
         }
 
-        m_text_view.draw(canvas);
+        m_rendering.m_layout.draw(canvas);
     }
 }
@@ -0,0 +1,235 @@
+package com.mrpi.appsearch;
+
+import android.os.Build;
+import android.os.Looper;
+import android.os.Trace;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tracer for the latency of searches, from the keystroke until the frame that shows the results.
+ *
+ * Each keystroke that starts a search gets a Record (see {@link #startKeystroke()}), which collects
+ * the time spent in each Stage. Stages on the search thread are attributed to the record that is
+ * set as current for that thread; stages on the UI thread to the latest keystroke. The stages are
+ * also marked as trace sections, so they show up in systrace.
+ *
+ * A record is complete when the InputBox has drawn the final results. The last CAPACITY complete
+ * records are kept in a ring buffer, from which percentiles can be calculated (see
+ * {@link #getStatistics()}) or which can be exported (see {@link #getCsv()}). Keystrokes whose
+ * search was superseded by a newer one never complete, and are left out.
+ *
+ * All methods are thread safe.
+ */
+public class LatencyTracer {
+
+    /** The stages of a search. */
+    public enum Stage {
+        SCHEDULING("scheduling"),
+        DATABASE("database query"),
+        MATCHING("matching"),
+        SORTING("sorting"),
+        PREPARING("text preparation"),
+        POSTING("posting"),
+        BINDING("adapter binding"),
+        DRAWING("input box drawing");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    /** The number of complete records to keep. */
+    private static final int CAPACITY = 256;
+
+    /** The number of columns of a record in the ring buffer: the total, and each stage. */
+    private static final int NUM_COLUMNS = Stage.values().length + 1;
+
+    /** The latency of a single keystroke, while it's being traced. */
+    public static class Record {
+        private final long m_start_ns = System.nanoTime();
+        private final long[] m_stage_ns = new long[Stage.values().length];
+
+        // Whether the final results are on screen, so the next frame completes the record
+        private boolean m_shown = false;
+        private boolean m_complete = false;
+
+        private synchronized void add(Stage stage, long duration_ns) {
+            if (!m_complete) m_stage_ns[stage.ordinal()] += duration_ns;
+        }
+    }
+
+    // The complete records in a ring buffer, in nanoseconds
+    private static final long[][] m_records = new long[CAPACITY][NUM_COLUMNS];
+    private static int m_next_record = 0;
+    private static int m_num_records = 0;
+
+    // The record of each search thread, and the one of the latest keystroke
+    private static final ThreadLocal<Record> m_current = new ThreadLocal<>();
+    private static volatile Record m_latest = null;
+
+    /**
+     * Start tracing a keystroke. This should be called on the UI thread.
+     *
+     * @return the record for the keystroke
+     */
+    public static Record startKeystroke() {
+        Record record = new Record();
+        m_latest = record;
+        return record;
+    }
+
+    /**
+     * Set the record that the stages on this thread are attributed to.
+     *
+     * @param record the record, or null to stop attributing them
+     */
+    public static void setCurrent(Record record) {
+        if (record != null) {
+            m_current.set(record);
+        } else {
+            m_current.remove();
+        }
+    }
+
+    /**
+     * Start a stage on this thread. It should be ended by end(), on the same thread.
+     *
+     * @param stage the stage
+     * @return the start time, to pass to end()
+     */
+    public static long begin(Stage stage) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(stage.label);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * End a stage on this thread, and add its time to the current record.
+     *
+     * @param stage the stage
+     * @param start_ns the start time from begin()
+     */
+    public static void end(Stage stage, long start_ns) {
+        long duration = System.nanoTime() - start_ns;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        Record record = m_current.get();
+        if (record == null && Looper.myLooper() == Looper.getMainLooper()) {
+            record = m_latest;
+        }
+        if (record != null) {
+            record.add(stage, duration);
+        }
+    }
+
+    /**
+     * Add the time since a moment to a stage of a record. This is meant for stages that span
+     * threads, which can't be traced with begin() and end().
+     *
+     * @param record the record
+     * @param stage the stage
+     * @param since_ns the start of the stage, as System.nanoTime(), or 0 for the keystroke
+     */
+    public static void addSince(Record record, Stage stage, long since_ns) {
+        record.add(stage, System.nanoTime() - ((since_ns != 0) ? since_ns : record.m_start_ns));
+    }
+
+    /**
+     * Mark that the final results of a keystroke have been handed to the views. This should be
+     * called on the UI thread.
+     *
+     * @param record the record of the keystroke
+     */
+    public static void resultsShown(Record record) {
+        synchronized (record) {
+            record.m_shown = true;
+        }
+    }
+
+    /**
+     * Mark that a frame has been drawn. If the final results of the latest keystroke are in it,
+     * its record is complete. This should be called on the UI thread.
+     */
+    public static void frameDrawn() {
+        Record record = m_latest;
+        if (record == null) return;
+
+        long[] columns = new long[NUM_COLUMNS];
+        synchronized (record) {
+            if (!record.m_shown || record.m_complete) return;
+            record.m_complete = true;
+            columns[0] = System.nanoTime() - record.m_start_ns;
+            System.arraycopy(record.m_stage_ns, 0, columns, 1, record.m_stage_ns.length);
+        }
+        synchronized (LatencyTracer.class) {
+            m_records[m_next_record] = columns;
+            m_next_record = (m_next_record + 1) % CAPACITY;
+            m_num_records = Math.min(m_num_records + 1, CAPACITY);
+        }
+    }
+
+    /**
+     * @return a human readable summary with the percentiles of the total latency and of each
+     *         stage, over the kept records.
+     */
+    public static synchronized String getStatistics() {
+        if (m_num_records == 0) return "Latency: no searches traced yet";
+
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("Latency of the last ").append(m_num_records).append(" searches (p50/p90/p99/max ms):");
+        long[] values = new long[m_num_records];
+        for (int column = 0; column < NUM_COLUMNS; column++) {
+            for (int record = 0; record < m_num_records; record++) {
+                values[record] = m_records[record][column];
+            }
+            Arrays.sort(values);
+            statistics.append('\n').append((column == 0) ? "total" : Stage.values()[column - 1].label).append(": ")
+                    .append(formatMs(percentile(values, 50))).append('/')
+                    .append(formatMs(percentile(values, 90))).append('/')
+                    .append(formatMs(percentile(values, 99))).append('/')
+                    .append(formatMs(values[values.length - 1]));
+        }
+        return statistics.toString();
+    }
+
+    /**
+     * @return the kept records as CSV, from old to new, with the times in microseconds.
+     */
+    public static synchronized String getCsv() {
+        StringBuilder csv = new StringBuilder("total");
+        for (Stage stage : Stage.values()) {
+            csv.append(',').append(stage.name().toLowerCase(Locale.US));
+        }
+        csv.append('\n');
+        int first = (m_next_record - m_num_records + CAPACITY) % CAPACITY;
+        for (int record = 0; record < m_num_records; record++) {
+            long[] columns = m_records[(first + record) % CAPACITY];
+            for (int column = 0; column < NUM_COLUMNS; column++) {
+                if (column > 0) csv.append(',');
+                csv.append(columns[column] / 1000);
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * @param sorted_values the values, in ascending order
+     * @param percent the percentile
+     * @return the value at the percentile (nearest rank)
+     */
+    private static long percentile(long[] sorted_values, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted_values.length);
+        return sorted_values[Math.max(rank - 1, 0)];
+    }
+
+    private static String formatMs(long ns) {
+        return String.format(Locale.US, "%.1f", ns / 1000000.0);
+    }
+}
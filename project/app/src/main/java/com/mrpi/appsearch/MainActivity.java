@@ -1,11 +1,5 @@
 package com.mrpi.appsearch;
 
-import java.util.ArrayList;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
 import android.app.Activity;
 import android.app.FragmentManager;
 import android.app.ProgressDialog;
@@ -17,8 +11,6 @@ import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
@@ -41,10 +33,13 @@ import android.widget.Toast;
  * running in the background. The trade-off is accuracy: while the background service is running
  * (which may take up to tens of seconds), the search is performed on a cached index.
  *
- * Also searching and subsequently formatting the results is done in a background threads. This
+ * Also searching and subsequently formatting the results is done in a background thread. This
  * prevents the UI from blocking when a search is performed. Although searching is quite fast in
- * general, it can sometimes hang when starting up. When more characters are typed, the running
- * search is aborted, further speeding up the search.
+ * general, it can sometimes hang when starting up. Searches are run one at a time by a
+ * SearchScheduler: when more characters are typed while a search is running, only the newest query
+ * is searched next, and the results of older queries are dropped. The search results are shown
+ * progressively: a provisional best match as soon as one is found, and the app results before the
+ * other sources are done.
  */
 public class MainActivity
         extends Activity {
@@ -52,21 +47,34 @@ public class MainActivity
     /** The maximum number of most used apps to show when opening the activity. */
     private static final int MAX_TOP_APPS = 4;
 
+    /** The number of search results to rank right away: the best match plus about a screen full of
+     *  results. The rest is only ranked when the user scrolls down. */
+    private static final int SEARCH_BATCH_SIZE = 16;
+
+    /** The time in milliseconds the command search may take beyond the app search. */
+    private static final long COMMAND_SEARCH_BUDGET_MS = 50;
+
     // The GUI EditText where the user types the query
     private InputBox m_input_box;
 
-    // The GUI ListView to present the results of the search
+    // The GUI ListView to present the results of the search, and its adapter, which is kept for
+    // the lifetime of the activity
     private ListView m_results_view;
+    private SearchResultArrayAdapter<SearchResult> m_results_adapter;
 
-    // Thread pool for our asynchronous search operations
-    private ExecutorService m_executor_service = Executors.newCachedThreadPool();
+    // The scheduler for our asynchronous search operations
+    private SearchScheduler m_scheduler = new SearchScheduler();
 
-    // The background thread to perform the search. It is needed to keep this instance so it can be
-    // cancelled when a new query arrives.
-    private Future<?> m_search_future;
+    // The searchers for apps and commands. These are kept for the lifetime of the activity, so
+    // they can narrow down the results of the previous query while the user is typing.
+    private FuzzyAppsSearcher m_app_searcher;
+    private FuzzyCommandSearcher m_command_searcher;
+
+    // The searcher that combines the results of the app and command searchers
+    private FederatedSearcher m_searcher;
 
     // The list of matched apps or commands
-    private ArrayList<? extends SearchResult> m_search_results;
+    private SearchResultList<? extends SearchResult> m_search_results;
 
     // When the user launches an app, a waiting spinner is presented to let her know something is
     // happening.
@@ -81,6 +89,7 @@ public class MainActivity
      * Keys for individual preferences
      */
     private final static String PREFS_COLLECT_RAW_CLICKS = "collect_raw_clicks";
+    private final static String PREFS_USE_FULL_TEXT_SEARCH = "use_full_text_search";
 
     @Override
     protected void onCreate(Bundle saved_instance) {
@@ -96,6 +105,18 @@ public class MainActivity
         // The two main GUI elements: the text box and the result list
         m_input_box = (InputBox) findViewById(R.id.appSearchView);
         m_results_view = (ListView) findViewById(R.id.resultsListView);
+        m_results_view.setRecyclerListener(SearchResultArrayAdapter::cancelIconLoad);
+        m_results_adapter = new SearchResultArrayAdapter<>(this);
+        m_results_view.setAdapter(m_results_adapter);
+
+        m_app_searcher = new FuzzyAppsSearcher(this);
+        m_command_searcher = new FuzzyCommandSearcher(this);
+        boolean use_fts = getPreferences(Context.MODE_PRIVATE).getBoolean(PREFS_USE_FULL_TEXT_SEARCH, false);
+        m_app_searcher.setUseFullTextSearch(use_fts);
+        m_command_searcher.setUseFullTextSearch(use_fts);
+        m_searcher = new FederatedSearcher();
+        m_searcher.addSource(m_app_searcher, "", 0);
+        m_searcher.addSource(m_command_searcher, "/", COMMAND_SEARCH_BUDGET_MS); // Magic character to _also_ search for commands
 
         // Attach a listener for when the user starts typing.
         m_input_box.addTextChangedListener(new TextWatcher() {
@@ -178,6 +199,7 @@ public class MainActivity
             switch (code) {
                 case EXPORT_DB:
                 case EXPORT_STACKTRACES:
+                case EXPORT_LATENCIES:
                     // Create an intent for sharing the db, attach a content:// uri with for the
                     // DebugContentProvider, and wrap the whole thing in a chooser so the user can
                     // select how to share the database.
@@ -186,9 +208,12 @@ public class MainActivity
                     if (code == CommandSearchResult.CommandCode.EXPORT_DB) {
                         intent.putExtra(android.content.Intent.EXTRA_SUBJECT, "AppSearch database");
                         intent.putExtra(android.content.Intent.EXTRA_STREAM, DebugContentProvider.getUriForAction(DebugContentProvider.Action.EXPORT_DB));
-                    } else {
+                    } else if (code == CommandSearchResult.CommandCode.EXPORT_STACKTRACES) {
                         intent.putExtra(android.content.Intent.EXTRA_SUBJECT, "AppSearch stacktraces");
                         intent.putExtra(android.content.Intent.EXTRA_STREAM, DebugContentProvider.getUriForAction(DebugContentProvider.Action.EXPORT_STACKTRACES));
+                    } else {
+                        intent.putExtra(android.content.Intent.EXTRA_SUBJECT, "AppSearch search latencies");
+                        intent.putExtra(android.content.Intent.EXTRA_STREAM, DebugContentProvider.getUriForAction(DebugContentProvider.Action.EXPORT_LATENCIES));
                     }
                     startActivity(Intent.createChooser(intent, "Share via"));
                     break;
@@ -212,6 +237,30 @@ public class MainActivity
                     prefs_editor.apply();
                     Toast.makeText(getApplicationContext(), toast, Toast.LENGTH_LONG).show();
                     break;
+                case USE_FULL_TEXT_SEARCH:
+                case DONT_USE_FULL_TEXT_SEARCH:
+                    // Switch between narrowing down the search with the full text search tables or
+                    // with the previous results, to compare both.
+                    boolean use_fts = (code == CommandSearchResult.CommandCode.USE_FULL_TEXT_SEARCH);
+                    m_app_searcher.setUseFullTextSearch(use_fts);
+                    m_command_searcher.setUseFullTextSearch(use_fts);
+                    getPreferences(Context.MODE_PRIVATE).edit().putBoolean(PREFS_USE_FULL_TEXT_SEARCH, use_fts).apply();
+                    Toast.makeText(getApplicationContext(),
+                            use_fts ? "Searching with the full text search tables" : "Searching without the full text search tables",
+                            Toast.LENGTH_LONG).show();
+                    break;
+                case SHOW_SEARCH_STATISTICS:
+                    String statistics = QueryCache.getStatistics() + "\n" +
+                            IconCache.getStatistics() + "\n" +
+                            DBHelper.getInstance(this).getAccess().getStatistics();
+                    Log.d("AppSearch", statistics);
+                    Toast.makeText(getApplicationContext(), statistics, Toast.LENGTH_LONG).show();
+                    break;
+                case SHOW_LATENCIES:
+                    String latencies = LatencyTracer.getStatistics();
+                    Log.d("AppSearch", latencies);
+                    Toast.makeText(getApplicationContext(), latencies, Toast.LENGTH_LONG).show();
+                    break;
             }
         }
     }
@@ -223,7 +272,7 @@ public class MainActivity
         reset();
         Log.d("Status", "App restarted");
 
-        // Every time onResume is called, the apps are indexed again.
+        // Every time onResume is called, the apps are indexed again if they have changed.
         Intent app_index_intent = new Intent(this, AppIndexService.class);
         startService(app_index_intent);
 
@@ -233,9 +282,10 @@ public class MainActivity
         if (starting_action != null &&
                 (starting_action.equals(Intent.ACTION_MAIN) ||
                         starting_action.equals(Intent.ACTION_ASSIST))) {
-            doBackgroundSearch(() -> {
+            m_scheduler.submit(ticket -> {
                 MostUsedAppsSearcher searcher = new MostUsedAppsSearcher(this, MAX_TOP_APPS);
-                return searcher.search();
+                SearchResultList<AppSearchResult> results = new SearchResultList<>(searcher.search(ticket.getCancellationSignal()));
+                ticket.publish(() -> onBackgroundSearchFinished(results));
             });
         }
 
@@ -260,11 +310,7 @@ public class MainActivity
     private void reset() {
         Log.d("Reset", "Resetting");
         // Clear results
-        SearchResultArrayAdapter adapter = ((SearchResultArrayAdapter) m_results_view.getAdapter());
-        if (adapter != null) {
-            adapter.clear();
-            adapter.notifyDataSetChanged();
-        }
+        m_results_adapter.clear();
         m_input_box.setText("");
 
         if (m_about_dialog != null) {
@@ -278,29 +324,53 @@ public class MainActivity
 
     /**
      * Perform a fuzzy match on the given query asynchronously.
-     * If a search was still running, it is cancelled first.
+     * If a search was still running, its results are dropped (see SearchScheduler).
      *
      * @param query the list of characters to search for in an app name.
      */
     private void doFuzzySearch(final String query) {
         if (query.length() > 0) {
             m_input_box.renderClear(false);
-            doBackgroundSearch(() -> {
-                FuzzyAppsSearcher app_searcher = new FuzzyAppsSearcher(this);
-                ArrayList results = app_searcher.search(query);
-                if (query.startsWith("/")) { // Magic character to _also_ search for commands
-                    FuzzyCommandSearcher command_searcher = new FuzzyCommandSearcher(this);
-                    results.addAll(command_searcher.search(query));
+            final LatencyTracer.Record record = LatencyTracer.startKeystroke();
+            final InputBox.Style style = m_input_box.getStyle(); // The search thread can't use the View
+            m_scheduler.submit(ticket -> {
+                LatencyTracer.addSince(record, LatencyTracer.Stage.SCHEDULING, 0);
+                FederatedSearcher.ProgressListener listener = new FederatedSearcher.ProgressListener() {
+                    @Override
+                    public void onTopHit(SearchResultList<? extends SearchResult> top_hit) {
+                        InputBox.Rendering rendering = (top_hit.size() > 0) ?
+                                InputBox.prepareMatchingSearchResult(style, top_hit, 0) : null;
+                        ticket.publish(() -> onTopHitFound(top_hit, rendering));
+                    }
+
+                    @Override
+                    public void onPartialResults(SearchResultList<SearchResult> results) {
+                        ticket.publish(prepareResults(results, style));
+                    }
+                };
+                Runnable show_results;
+                LatencyTracer.setCurrent(record);
+                try {
+                    SearchResultList<SearchResult> results = m_searcher.search(query, SEARCH_BATCH_SIZE,
+                            listener, ticket.getCancellationSignal());
+                    show_results = prepareResults(results, style);
+                } finally {
+                    LatencyTracer.setCurrent(null);
                 }
-                return results;
+                final long posted = System.nanoTime();
+                ticket.publish(() -> {
+                    LatencyTracer.addSince(record, LatencyTracer.Stage.POSTING, posted);
+                    show_results.run();
+                    LatencyTracer.resultsShown(record);
+                });
             });
         } else {
+            // Results of a search that is still running are of no use anymore
+            m_scheduler.dropAll();
+
             // If the user clears the view, we don't clean up the list of results but we remove the
             // highlighting of the matched letters.
-            SearchResultArrayAdapter adapter = ((SearchResultArrayAdapter) m_results_view.getAdapter());
-            if (adapter != null) {
-                adapter.renderClear();
-            }
+            m_results_adapter.renderClear();
 
             m_input_box.renderClear(true);
         }
@@ -385,58 +455,93 @@ public class MainActivity
         setIntent(new_intent);
     }
 
-    /** Perform a search for AppData in a background thread (using m_search_future). When finished,
-     *  call onBackgroundSearchFinished on the UI thread to process the results. If a search is
-     *  currently running, it will be cancelled first.
+    /**
+     * Prepare the text of the results for display, so that the UI thread only needs to attach it.
+     * This is called on the search thread. The names are prepared for the first batch of results,
+     * which covers the rows on screen.
      *
-     * @param callable a Callable that should return an ArrayList of AppData objects.
+     * @param results the result of the search
+     * @param style the style of the input box text, taken on the UI thread
+     * @return the action to show the results, which should be run on the UI thread
      */
-    private <T extends SearchResult> void doBackgroundSearch(Callable<ArrayList<T>> callable) {
-        if (m_search_future != null) m_search_future.cancel(true);
-        m_search_future = m_executor_service.submit(() -> {
-            try {
-                ArrayList<T> results = callable.call();
-                Handler main = new Handler(Looper.getMainLooper());
-                main.post(() -> onBackgroundSearchFinished(results));
-            } catch (Exception e) {
-                Log.d("AppSearch", "Exception occurred", e);
-                // TODO: report exception
-            }
-        });
+    private Runnable prepareResults(SearchResultList<SearchResult> results, InputBox.Style style) {
+        long start = LatencyTracer.begin(LatencyTracer.Stage.PREPARING);
+        InputBox.Rendering rendering = null;
+        int first = 0;
+        if (results.size() > 0) {
+            rendering = InputBox.prepareMatchingSearchResult(style, results, 0);
+            first = 1;
+        }
+        CharSequence[] names = m_results_adapter.prepareNames(results, first, SEARCH_BATCH_SIZE);
+        LatencyTracer.end(LatencyTracer.Stage.PREPARING, start);
+        final InputBox.Rendering top_hit_rendering = rendering;
+        return () -> onBackgroundSearchFinished(results, top_hit_rendering, names);
     }
 
     /**
-     * Callback for doBackgroundSearch to handle the results of an AppData search on the UI thread.
+     * Callback for the background searches to handle the results of an AppData search on the UI
+     * thread.
      * It will set the search box to the first result and the listview to the remainder of the
      * results.
      *
-     * @param apps the result from the Callable being passed to doBackgroundSearch()
+     * @param apps the result of the search
      */
-    public <T extends SearchResult> void onBackgroundSearchFinished(ArrayList<T> apps) {
+    public <T extends SearchResult> void onBackgroundSearchFinished(SearchResultList<T> apps) {
+        onBackgroundSearchFinished(apps, null, null);
+    }
+
+    /**
+     * Like onBackgroundSearchFinished(apps), with text that has been prepared on the search thread
+     * (see prepareResults()).
+     *
+     * @param apps the result of the search
+     * @param top_hit_rendering the rendered first result for the input box, or null
+     * @param names the highlighted names of the first rows of the list view, or null
+     */
+    private <T extends SearchResult> void onBackgroundSearchFinished(SearchResultList<T> apps,
+                                                                     InputBox.Rendering top_hit_rendering,
+                                                                     CharSequence[] names) {
         m_search_results = apps;
 
         // Use the first result as the "selected" app
+        showMatchingResult(apps, top_hit_rendering);
+
+        // Fill the list view with the rest of the results. The adapter stays the same, so rows
+        // that still show the same result don't need to be rendered again.
+        m_results_adapter.setResults(apps, (apps.size() > 0) ? 1 : 0, names);
+    }
+
+    /**
+     * Callback for a provisional top hit while a search is still running (see doFuzzySearch()). It
+     * is shown as the selected app right away; the list view is left alone until the results are
+     * in.
+     *
+     * @param top_hit a list holding the top hit
+     * @param rendering the top hit rendered for the input box, or null
+     */
+    private void onTopHitFound(SearchResultList<? extends SearchResult> top_hit, InputBox.Rendering rendering) {
+        m_search_results = top_hit;
+        showMatchingResult(top_hit, rendering);
+    }
+
+    /**
+     * Show the first result of a list in the search box, together with its icon.
+     *
+     * @param results the results, which may be empty
+     * @param rendering the first result rendered for the input box, or null
+     */
+    private void showMatchingResult(SearchResultList<? extends SearchResult> results, InputBox.Rendering rendering) {
         Drawable icon = null;
-        if (apps.size() > 0) {
-            m_input_box.setMatchingSearchResult(apps.get(0));
-            icon = apps.get(0).resolveIcon(this); // might be null
+        if (results.size() > 0) {
+            m_input_box.setMatchingSearchResult(results, 0, rendering);
+            icon = results.get(0).resolveIcon(this); // might be null
         } else {
-            m_input_box.setMatchingSearchResult(null);
+            m_input_box.setMatchingSearchResult(null, 0);
         }
         if (icon == null) {
             // Show an "error" icon if no actual icon could be found.
             icon = getResources().getDrawable(android.R.drawable.ic_delete);
         }
         ((ImageView) findViewById(R.id.selectedAppIcon)).setImageDrawable(icon);
-
-        // Fill the list view with the rest of the results
-        SearchResultArrayAdapter adapter;
-        if (apps.size() > 0) {
-            adapter = new SearchResultArrayAdapter(this, R.id.resultsListView, apps.subList(1, apps.size()));
-        } else {
-            adapter = new SearchResultArrayAdapter(this, R.id.resultsListView, new ArrayList<SearchResult>());
-        }
-        ListView results_list_view = (ListView) findViewById(R.id.resultsListView);
-        results_list_view.setAdapter(adapter);
     }
 }
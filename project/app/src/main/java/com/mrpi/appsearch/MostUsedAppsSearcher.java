@@ -7,6 +7,7 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -50,6 +51,16 @@ public class MostUsedAppsSearcher {
      * Query the database to find the most used apps.
      */
     public ArrayList<AppSearchResult> search() {
+        return search(null);
+    }
+
+    /**
+     * Query the database to find the most used apps.
+     *
+     * @param signal if not null, the search is aborted with an OperationCanceledException when
+     *               this is cancelled.
+     */
+    public ArrayList<AppSearchResult> search(CancellationSignal signal) {
         // Our return object
         ArrayList<AppSearchResult> apps = new ArrayList<AppSearchResult>();
 
@@ -66,36 +77,34 @@ public class MostUsedAppsSearcher {
             // Get the top apps for this time and day or overall. Since apps might
             // occur twice in this list (one for time slot and day, and one overall),
             // we need to set the limit to double the requested number.
-            String time_slot_str = Long.toString(CountAndDecay.getTimeSlot());
-            String day_str = Integer.toString(Calendar.getInstance().get(Calendar.DAY_OF_WEEK));
-            String limit_str = (m_max_results > 0) ? Integer.toString(2 * m_max_results) : "";
-            Cursor cursor = db.query(DBHelper.TBL_USAGE,
-                    new String[]{"package_name", "score"},
-                    "(time_slot=? AND day=?) OR (time_slot=-1 AND day=-1)",
-                    new String[]{time_slot_str, day_str},
-                    null, null,
-                    "score DESC", limit_str);
+            int day = Calendar.getInstance().get(Calendar.DAY_OF_WEEK);
+            int limit = (m_max_results > 0) ? 2 * m_max_results : -1;
+            Cursor cursor = DBHelper.getInstance(m_context).getAccess().queryMostUsed(
+                    CountAndDecay.getTimeSlot(), day, limit, signal);
 
             // Process the results, but stop if we have enough data
-            boolean result = cursor.moveToFirst();
-            while (result && (apps.size() < m_max_results || m_max_results == -1)) {
-                String package_name = cursor.getString(0);
-                Intent intent = m_context.getPackageManager().getLaunchIntentForPackage(package_name);
-                if (intent != null) { // Intent will be null if package has been uninstalled, so we filter out these apps here
-                    ActivityInfo activity_info = intent.resolveActivityInfo(m_package_manager, 0);
-                    String name = activity_info.loadLabel(m_package_manager).toString();
-                    AppSearchResult app_data = new AppSearchResult(name, package_name);
+            try {
+                boolean result = cursor.moveToFirst();
+                while (result && (apps.size() < m_max_results || m_max_results == -1)) {
+                    if (signal != null) signal.throwIfCanceled(); // Looking up the apps is the slow part
+                    String package_name = cursor.getString(0);
+                    Intent intent = m_context.getPackageManager().getLaunchIntentForPackage(package_name);
+                    if (intent != null) { // Intent will be null if package has been uninstalled, so we filter out these apps here
+                        ActivityInfo activity_info = intent.resolveActivityInfo(m_package_manager, 0);
+                        String name = activity_info.loadLabel(m_package_manager).toString();
+                        AppSearchResult app_data = new AppSearchResult(name, package_name);
 
-                    // If the package is already present in the list, this new entry has a
-                    // lower score so we can ignore it.
-                    if (!apps.contains(app_data)) {
-                        app_data.match_rating = cursor.getInt(1);
-                        apps.add(app_data);
+                        // If the package is already present in the list, this new entry has a
+                        // lower score so we can ignore it.
+                        if (!apps.contains(app_data)) {
+                            apps.add(app_data);
+                        }
                     }
+                    result = cursor.moveToNext();
                 }
-                result = cursor.moveToNext();
+            } finally {
+                cursor.close();
             }
-            cursor.close();
         }
 
         return apps;
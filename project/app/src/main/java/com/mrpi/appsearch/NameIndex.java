@@ -0,0 +1,567 @@
+package com.mrpi.appsearch;
+
+import android.util.Log;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Resident, read-only index of searchable names, which is kept in memory so that the fuzzy search
+ * doesn't need to hit the database on each keystroke.
+ *
+ * The names are stored in a compact columnar way: all names are concatenated into a single char
+ * arena, with an offset table pointing to the start of each name. Next to this, a second arena
+ * holds the search key of each name (see {@link #searchKey(String)}), so that the names don't need
+ * to be normalized again for each search. Since a search key may differ in length from its name,
+ * it has its own offset table, and for each character of the key the position in the name it
+ * comes from is kept, to map the matching characters back to the name. Entry numbers follow the
+ * order in which the names were supplied, which should be the order of preference (as in the
+ * database).
+ *
+ * For each search key, a character mask is kept as well (see {@link #charMask(CharSequence)}).
+ * This allows to discard most non-matching names with a single AND-compare.
+ *
+ * Finally, for each search key a next-occurrence table is built, so that matching a query takes
+ * time proportional to the length of the query rather than to the length of the key (see
+ * {@link #nextOccurrence(int, int, char)}). The table of a key has a row for each position in the
+ * key, and a column for each kind of character in the key's mask. A cell holds the first
+ * position at or after the row position where a character of the column kind occurs. Since names
+ * are short, positions are stored as bytes; keys that are too long for this go without a table.
+ *
+ * To find names by their initials (like "gm" for "Google Maps"), the positions in the search key
+ * where the words of each name start are kept, together with a lookup table from initials to
+ * entries (see {@link #getInitialsMatches(String)}).
+ *
+ * Instances are immutable after construction, so they can be shared between threads freely.
+ * Derived classes add the other columns that are needed to construct a search result. A single
+ * search result object is kept for each entry, which is reused for every search; the data that
+ * describes how a result matches a query is kept separately in a SearchResultList.
+ *
+ * @param <T> the type of SearchResult that can be constructed from an entry.
+ */
+public abstract class NameIndex<T extends SearchResult> {
+    /** All names concatenated, and the start of each name in this arena. The last element points
+     *  to the end of the arena. */
+    private final char[] m_names;
+    private final int[] m_name_offsets;
+
+    /** All search keys concatenated, and the start of each key in this arena. */
+    private final char[] m_keys;
+    private final int[] m_key_offsets;
+
+    /** For each character in m_keys, the position in the name that it comes from. */
+    private final int[] m_key_positions;
+
+    /** The character mask of each name. */
+    private final long[] m_masks;
+
+    /** The database ROWID of each entry, in ascending order. */
+    private final long[] m_row_ids;
+
+    /** The positions in each search key where a word starts, concatenated, and the start of the
+     *  positions of each entry in this arena. The last element points to the end of the arena. */
+    private final int[] m_word_starts;
+    private final int[] m_word_start_offsets;
+
+    /** The entries for each sequence of initials, and each prefix of at least two characters of
+     *  it, in index order. */
+    private final HashMap<String, int[]> m_initials;
+
+    /** The maximum number of initials of a name that can be looked up. */
+    private static final int MAX_INITIALS_LENGTH = 8;
+
+    /** All next-occurrence tables concatenated, and the start of each table in this arena (or
+     *  NO_SKIP_TABLE for names that are too long). */
+    private final byte[] m_skip_tables;
+    private final int[] m_skip_offsets;
+
+    /** Keys of this length or longer don't get a next-occurrence table. */
+    private static final int MAX_SKIP_TABLE_LENGTH = 255;
+    private static final int NO_SKIP_TABLE = -1;
+
+    /** The search result objects for all entries. */
+    private final SearchResult[] m_results;
+
+    /**
+     * Build the arenas for the given names.
+     *
+     * @param names the names to index, in order of preference.
+     * @param masks the character masks for the names, as stored in the database, or null. They
+     *              are only compared with the masks of the current search keys, which are
+     *              calculated here.
+     * @param initials the initials of the names (see {@link #initials(String)}), as stored in the
+     *                 database. If null, or if an element is null, they are calculated here.
+     * @param row_ids the ROWIDs of the names in the database, in ascending order.
+     */
+    protected NameIndex(List<String> names, long[] masks, List<String> initials, long[] row_ids) {
+        // Normalize the names to their search keys
+        int total_length = 0;
+        String[] keys = new String[names.size()];
+        ArrayList<Integer> key_positions = new ArrayList<>();
+        for (int entry = 0; entry < names.size(); entry++) {
+            total_length += names.get(entry).length();
+            keys[entry] = normalize(names.get(entry), key_positions);
+        }
+
+        m_names         = new char[total_length];
+        m_name_offsets  = new int[names.size() + 1];
+        m_keys          = new char[key_positions.size()];
+        m_key_offsets   = new int[names.size() + 1];
+        m_key_positions = new int[key_positions.size()];
+
+        int name_offset = 0;
+        int key_offset = 0;
+        for (int entry = 0; entry < names.size(); entry++) {
+            String name = names.get(entry);
+            m_name_offsets[entry] = name_offset;
+            name.getChars(0, name.length(), m_names, name_offset);
+            name_offset += name.length();
+
+            m_key_offsets[entry] = key_offset;
+            keys[entry].getChars(0, keys[entry].length(), m_keys, key_offset);
+            key_offset += keys[entry].length();
+        }
+        m_name_offsets[names.size()] = name_offset;
+        m_key_offsets[names.size()] = key_offset;
+        for (int pos = 0; pos < m_key_positions.length; pos++) {
+            m_key_positions[pos] = key_positions.get(pos);
+        }
+
+        m_results = new SearchResult[names.size()];
+        m_row_ids = row_ids;
+
+        // Find the word starts and build the initials lookup table
+        int num_word_starts = 0;
+        m_word_start_offsets = new int[names.size() + 1];
+        int[][] word_starts = new int[names.size()][];
+        for (int entry = 0; entry < names.size(); entry++) {
+            word_starts[entry] = keyWordStarts(entry, wordStarts(names.get(entry)));
+            m_word_start_offsets[entry] = num_word_starts;
+            num_word_starts += word_starts[entry].length;
+        }
+        m_word_start_offsets[names.size()] = num_word_starts;
+        m_word_starts = new int[num_word_starts];
+        HashMap<String, ArrayList<Integer>> initials_entries = new HashMap<>();
+        for (int entry = 0; entry < names.size(); entry++) {
+            System.arraycopy(word_starts[entry], 0, m_word_starts, m_word_start_offsets[entry], word_starts[entry].length);
+            String entry_initials = (initials != null) ? initials.get(entry) : null;
+            if (entry_initials == null) entry_initials = initials(keys[entry], word_starts[entry]);
+            for (int length = 2; length <= Math.min(entry_initials.length(), MAX_INITIALS_LENGTH); length++) {
+                String key = entry_initials.substring(0, length);
+                ArrayList<Integer> entries = initials_entries.get(key);
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    initials_entries.put(key, entries);
+                }
+                entries.add(entry);
+            }
+        }
+        m_initials = new HashMap<>();
+        for (String key : initials_entries.keySet()) {
+            ArrayList<Integer> entries = initials_entries.get(key);
+            int[] entries_array = new int[entries.size()];
+            for (int i = 0; i < entries.size(); i++) entries_array[i] = entries.get(i);
+            m_initials.put(key, entries_array);
+        }
+
+        // The masks are taken from the keys as they are normalized now, since the next-occurrence
+        // tables are laid out on them. A stored mask differs if the row was stored before the
+        // normalization changed (for instance with newer Unicode data).
+        m_masks = new long[names.size()];
+        int num_stale_masks = 0;
+        for (int entry = 0; entry < names.size(); entry++) {
+            m_masks[entry] = normMask(entry);
+            if (masks != null && masks[entry] != m_masks[entry]) num_stale_masks++;
+        }
+        if (num_stale_masks > 0) {
+            Log.d("AppSearch", num_stale_masks + " stored name masks were out of date");
+        }
+
+        // Build the next-occurrence tables
+        int tables_length = 0;
+        m_skip_offsets = new int[names.size()];
+        for (int entry = 0; entry < names.size(); entry++) {
+            int length = getKeyLength(entry);
+            if (length < MAX_SKIP_TABLE_LENGTH) {
+                m_skip_offsets[entry] = tables_length;
+                tables_length += (length + 1) * Long.bitCount(m_masks[entry]);
+            } else {
+                m_skip_offsets[entry] = NO_SKIP_TABLE;
+            }
+        }
+        m_skip_tables = new byte[tables_length];
+        for (int entry = 0; entry < names.size(); entry++) {
+            if (m_skip_offsets[entry] != NO_SKIP_TABLE) buildSkipTable(entry);
+        }
+    }
+
+    /**
+     * Calculate the character mask of an entry from the search keys arena.
+     *
+     * @param entry the entry number
+     * @return the character mask of the entry
+     */
+    private long normMask(int entry) {
+        long mask = 0;
+        for (int pos = m_key_offsets[entry]; pos < m_key_offsets[entry + 1]; pos++) {
+            mask |= charBit(m_keys[pos]);
+        }
+        return mask;
+    }
+
+    /**
+     * Convert the word starts of a name to positions in its search key: the first key character
+     * that comes from each word start.
+     *
+     * @param entry the entry number
+     * @param name_word_starts the word starts in the name
+     * @return the word starts in the search key
+     */
+    private int[] keyWordStarts(int entry, int[] name_word_starts) {
+        int[] key_word_starts = new int[name_word_starts.length];
+        int num_starts = 0;
+        int key_pos = 0;
+        int key_length = getKeyLength(entry);
+        for (int name_pos : name_word_starts) {
+            while (key_pos < key_length && getNamePosition(entry, key_pos) < name_pos) key_pos++;
+            if (key_pos < key_length && getNamePosition(entry, key_pos) == name_pos) {
+                key_word_starts[num_starts++] = key_pos;
+            }
+        }
+        return Arrays.copyOf(key_word_starts, num_starts);
+    }
+
+    /**
+     * Normalize a name to its search key: it's lowercased, and diacritics are stripped by
+     * decomposing it (Unicode NFD) and dropping the combining marks. For instance, "Café" becomes
+     * "cafe". Queries should be normalized the same way before matching them against the keys.
+     *
+     * @param name the name to normalize
+     * @return the search key
+     */
+    public static String searchKey(String name) {
+        return normalize(name, null);
+    }
+
+    /**
+     * Perform the normalization for searchKey().
+     *
+     * @param name the name to normalize
+     * @param key_positions if not null, for each character of the key the position in the name it
+     *                      comes from is appended to this list.
+     * @return the search key
+     */
+    private static String normalize(String name, ArrayList<Integer> key_positions) {
+        StringBuilder key = new StringBuilder(name.length());
+        int pos = 0;
+        while (pos < name.length()) {
+            int code_point = name.codePointAt(pos);
+            int num_chars = Character.charCount(code_point);
+            if (code_point < 0x80) {
+                // Nothing to decompose
+                appendToKey(key, key_positions, code_point, pos);
+            } else {
+                // Decompose the character, and keep only the base character(s). Marks that were
+                // already separate in the name are dropped the same way.
+                String decomposed = Normalizer.normalize(name.substring(pos, pos + num_chars), Normalizer.Form.NFD);
+                int decomposed_pos = 0;
+                while (decomposed_pos < decomposed.length()) {
+                    int decomposed_code_point = decomposed.codePointAt(decomposed_pos);
+                    if (Character.getType(decomposed_code_point) != Character.NON_SPACING_MARK) {
+                        appendToKey(key, key_positions, decomposed_code_point, pos);
+                    }
+                    decomposed_pos += Character.charCount(decomposed_code_point);
+                }
+            }
+            pos += num_chars;
+        }
+        return key.toString();
+    }
+
+    private static void appendToKey(StringBuilder key, ArrayList<Integer> key_positions, int code_point, int name_pos) {
+        int length = key.length();
+        key.appendCodePoint(Character.toLowerCase(code_point));
+        if (key_positions != null) {
+            for (int i = length; i < key.length(); i++) key_positions.add(name_pos);
+        }
+    }
+
+    /**
+     * Fill in the next-occurrence table for an entry. The table is filled from the back, where
+     * each row is a copy of the next row, except for the column of the character at the row
+     * position itself. The last row (just beyond the name) points to the end of the name.
+     *
+     * @param entry the entry number
+     */
+    private void buildSkipTable(int entry) {
+        int offset = m_key_offsets[entry];
+        int length = getKeyLength(entry);
+        long mask = m_masks[entry];
+        int width = Long.bitCount(mask);
+        int table = m_skip_offsets[entry];
+
+        for (int column = 0; column < width; column++) {
+            m_skip_tables[table + length * width + column] = (byte) length;
+        }
+        for (int pos = length - 1; pos >= 0; pos--) {
+            int row = table + pos * width;
+            System.arraycopy(m_skip_tables, row + width, m_skip_tables, row, width);
+            long bit = charBit(m_keys[offset + pos]);
+            m_skip_tables[row + Long.bitCount(mask & (bit - 1))] = (byte) pos;
+        }
+    }
+
+    /**
+     * Calculate the character mask for a search key. The mask has a bit set for each kind of
+     * character that is present in the key: the first 26 bits represent the letters a-z, the next
+     * 10 bits the digits, and the remaining 28 bits are shared by all other characters.
+     *
+     * A name can only match a query if all the bits of the query mask are set in the mask of the
+     * name.
+     *
+     * @param key the search key to calculate the mask for
+     * @return the character mask
+     */
+    public static long charMask(CharSequence key) {
+        long mask = 0;
+        for (int pos = 0; pos < key.length(); pos++) {
+            mask |= charBit(key.charAt(pos));
+        }
+        return mask;
+    }
+
+    /**
+     * @param c a lowercase character
+     * @return the bit representing the character in a character mask.
+     */
+    static long charBit(char c) {
+        if (c >= 'a' && c <= 'z') return 1L << (c - 'a');
+        if (c >= '0' && c <= '9') return 1L << (26 + c - '0');
+        return 1L << (36 + c % 28);
+    }
+
+    /**
+     * Find the positions in a name where a word starts: the first letter or digit after a
+     * character that isn't, and uppercase letters following a lowercase one (as in "AppSearch").
+     *
+     * @param name the name
+     * @return the positions of the word starts.
+     */
+    static int[] wordStarts(String name) {
+        int[] starts = new int[name.length()];
+        int num_starts = 0;
+        for (int pos = 0; pos < name.length(); pos++) {
+            char c = name.charAt(pos);
+            if (!Character.isLetterOrDigit(c)) continue;
+            if (pos == 0) {
+                starts[num_starts++] = pos;
+            } else {
+                char prev = name.charAt(pos - 1);
+                if (!Character.isLetterOrDigit(prev) ||
+                        (Character.isLowerCase(prev) && Character.isUpperCase(c))) {
+                    starts[num_starts++] = pos;
+                }
+            }
+        }
+        return Arrays.copyOf(starts, num_starts);
+    }
+
+    /**
+     * Get the initials of a name: the first characters of its words (see wordStarts()), taken from
+     * its search key.
+     *
+     * @param name the name
+     * @return the initials, like "gm" for "Google Maps".
+     */
+    public static String initials(String name) {
+        ArrayList<Integer> key_positions = new ArrayList<>();
+        String key = normalize(name, key_positions);
+        int[] name_word_starts = wordStarts(name);
+        StringBuilder initials = new StringBuilder();
+        int key_pos = 0;
+        for (int name_pos : name_word_starts) {
+            while (key_pos < key.length() && key_positions.get(key_pos) < name_pos) key_pos++;
+            if (key_pos < key.length() && key_positions.get(key_pos) == name_pos) {
+                initials.append(key.charAt(key_pos));
+            }
+        }
+        return initials.toString();
+    }
+
+    /**
+     * @param key the search key of a name
+     * @param key_word_starts the word starts in the search key
+     * @return the initials of the name
+     */
+    private static String initials(String key, int[] key_word_starts) {
+        StringBuilder initials = new StringBuilder();
+        for (int pos : key_word_starts) initials.append(key.charAt(pos));
+        return initials.toString();
+    }
+
+    /**
+     * Look up the entries whose initials start with the query.
+     *
+     * @param query the normalized query (see searchKey())
+     * @return the matching entries in index order, or null if there are none.
+     */
+    int[] getInitialsMatches(String query) {
+        if (query.length() < 2) return null; // Single letters are better served by a normal match
+        return m_initials.get(query);
+    }
+
+    /**
+     * @param entry the entry number
+     * @param word the number of the word in the name
+     * @return the position in the search key where the word starts, or -1 if the name has less
+     *         words.
+     */
+    int getWordStart(int entry, int word) {
+        int pos = m_word_start_offsets[entry] + word;
+        return (pos < m_word_start_offsets[entry + 1]) ? m_word_starts[pos] : -1;
+    }
+
+    /**
+     * @return the number of entries in the index.
+     */
+    public int size() {
+        return m_name_offsets.length - 1;
+    }
+
+    /**
+     * Find the entry for a database row, for instance one that was found by a full text search.
+     *
+     * @param row_id the ROWID of the name in the database
+     * @return the entry number, or -1 if the row is not in the index.
+     */
+    public int getEntry(long row_id) {
+        int entry = Arrays.binarySearch(m_row_ids, row_id);
+        return (entry >= 0) ? entry : -1;
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the ROWID of the entry in the database.
+     */
+    long getRowId(int entry) {
+        return m_row_ids[entry];
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the original name of the entry.
+     */
+    public String getName(int entry) {
+        return new String(m_names, m_name_offsets[entry], m_name_offsets[entry + 1] - m_name_offsets[entry]);
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the length of the search key of the entry.
+     */
+    public int getKeyLength(int entry) {
+        return m_key_offsets[entry + 1] - m_key_offsets[entry];
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the position in the keys arena where the search key of the entry starts.
+     */
+    int getKeyOffset(int entry) {
+        return m_key_offsets[entry];
+    }
+
+    /**
+     * @param entry the entry number
+     * @param key_pos a position in the search key of the entry
+     * @return the position in the name where the character of the search key comes from.
+     */
+    int getNamePosition(int entry, int key_pos) {
+        return m_key_positions[m_key_offsets[entry] + key_pos];
+    }
+
+    /**
+     * Direct access to the character masks of all entries. It should never be modified!
+     *
+     * @return the character masks, indexed by entry number.
+     */
+    long[] getMasks() {
+        return m_masks;
+    }
+
+    /**
+     * Direct access to the search keys arena. It should never be modified!
+     *
+     * @return the arena with all search keys.
+     */
+    char[] getKeys() {
+        return m_keys;
+    }
+
+    /**
+     * Find the first position at or after the given position where the given character occurs in
+     * the search key of an entry. This is a direct table lookup; only when different characters
+     * share a bit in the mask, the lookup may need to be repeated.
+     *
+     * @param entry the entry number
+     * @param from the position in the key to start looking from
+     * @param c the normalized character to look for
+     * @return the position of the character in the key, or the length of the key if it doesn't
+     *         occur (anymore).
+     */
+    int nextOccurrence(int entry, int from, char c) {
+        int offset = m_key_offsets[entry];
+        int length = m_key_offsets[entry + 1] - offset;
+        if (from >= length) return length;
+
+        int table = m_skip_offsets[entry];
+        if (table == NO_SKIP_TABLE) {
+            // Just walk the key
+            int pos = from;
+            while (pos < length && m_keys[offset + pos] != c) pos++;
+            return pos;
+        }
+
+        long mask = m_masks[entry];
+        long bit = charBit(c);
+        if ((mask & bit) == 0) return length;
+        int width = Long.bitCount(mask);
+        int column = Long.bitCount(mask & (bit - 1));
+        int pos = m_skip_tables[table + from * width + column] & 0xff;
+        while (pos < length && m_keys[offset + pos] != c) {
+            pos = m_skip_tables[table + (pos + 1) * width + column] & 0xff;
+        }
+        return pos;
+    }
+
+    /**
+     * Construct the search result objects for all entries. Derived classes should call this at the
+     * end of their constructor, when all data for createResult() is available.
+     */
+    protected final void createResults() {
+        for (int entry = 0; entry < m_results.length; entry++) {
+            m_results[entry] = createResult(entry);
+        }
+    }
+
+    /**
+     * @param entry the entry number
+     * @return the search result object representing the entry.
+     */
+    @SuppressWarnings("unchecked")
+    public T getResult(int entry) {
+        return (T) m_results[entry];
+    }
+
+    /**
+     * Derived classes should implement this to construct a search result for the given entry. It's
+     * called only once per entry (see createResults()).
+     *
+     * @param entry the entry number
+     * @return a search result representing the entry.
+     */
+    abstract T createResult(int entry);
+}
@@ -0,0 +1,133 @@
+package com.mrpi.appsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache for the results of recent searches, so that retyping a query after a backspace doesn't
+ * need a full search again.
+ *
+ * Entries are keyed by source and query. The cache as a whole is invalidated by bumping a global
+ * generation counter whenever something changes that can affect the results: the apps table is
+ * replaced (see {@link DBHelper#switchDirty()}), a package is removed, or an app launch is
+ * recorded. Results that were computed while the generation changed are not stored, so a search
+ * that straddles an invalidation can't put stale results in the cache.
+ *
+ * All methods are thread safe.
+ *
+ * @param <V> the type of the cached results. These should be immutable, as they are shared between
+ *            searches.
+ */
+public class QueryCache<V> {
+
+    // The current generation, shared by all caches
+    private static int m_generation = 0;
+
+    // The hit and miss counts of all caches
+    private static int m_hits = 0;
+    private static int m_misses = 0;
+
+    /** The generation of the cached results. */
+    private int m_cache_generation = 0;
+
+    private final LinkedHashMap<String, V> m_entries;
+
+    /**
+     * @param max_entries the maximum number of results to keep. The least recently used ones are
+     *                    dropped first.
+     */
+    public QueryCache(final int max_entries) {
+        // An access ordered map, which drops its eldest entry when it grows too big
+        m_entries = new LinkedHashMap<String, V>(max_entries + 1, 1.0f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > max_entries;
+            }
+        };
+    }
+
+    /**
+     * Invalidate all caches.
+     */
+    public static synchronized void invalidate() {
+        m_generation++;
+    }
+
+    /**
+     * @return the current generation. This should be retrieved before the search starts, and
+     *         passed to put() when it's done.
+     */
+    public static synchronized int getGeneration() {
+        return m_generation;
+    }
+
+    /**
+     * Check whether cached results can be used for a search, for what the generation doesn't cover.
+     */
+    public interface Validator<V> {
+        /**
+         * @param results the cached results
+         * @return true if the results can be used.
+         */
+        boolean isValid(V results);
+    }
+
+    /**
+     * Look up the results for a query. Results that are not valid anymore are dropped, and count
+     * as a miss.
+     *
+     * @param source the name of the source that was searched
+     * @param query the normalized query
+     * @param validator the check whether the results can be used for this search. It's called
+     *                  with the lock on the caches held, so it should be quick.
+     * @return the results, or null if they're not in the cache.
+     */
+    public V get(String source, String query, Validator<? super V> validator) {
+        synchronized (QueryCache.class) {
+            if (m_cache_generation != m_generation) {
+                m_entries.clear();
+                m_cache_generation = m_generation;
+            }
+            String key = source + "\n" + query;
+            V results = m_entries.get(key);
+            if (results != null && !validator.isValid(results)) {
+                m_entries.remove(key);
+                results = null;
+            }
+            if (results != null) {
+                m_hits++;
+            } else {
+                m_misses++;
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Store the results for a query, if they're still valid.
+     *
+     * @param source the name of the source that was searched
+     * @param query the normalized query
+     * @param generation the generation at the start of the search (see getGeneration())
+     * @param results the results to store
+     */
+    public void put(String source, String query, int generation, V results) {
+        synchronized (QueryCache.class) {
+            if (generation != m_generation) return;
+            if (m_cache_generation != m_generation) {
+                m_entries.clear();
+                m_cache_generation = m_generation;
+            }
+            m_entries.put(source + "\n" + query, results);
+        }
+    }
+
+    /**
+     * @return a human readable summary of the hits and misses of all caches.
+     */
+    public static synchronized String getStatistics() {
+        int lookups = m_hits + m_misses;
+        return "Query cache: " + m_hits + " hits, " + m_misses + " misses" +
+                ((lookups > 0) ? " (" + (100 * m_hits / lookups) + "% hits)" : "");
+    }
+}
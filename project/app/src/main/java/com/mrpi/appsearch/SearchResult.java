@@ -3,27 +3,17 @@ package com.mrpi.appsearch;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
 
-import java.util.ArrayList;
-
 /**
  * General container for holding a search result, mainly targeted towards displaying it in the app.
  *
- * A search result holds a name that is used for searching, a ranking representing how well the
- * result matches the query, and a list of the letters from the name that match the search query.
+ * A search result holds a name that is used for searching. How well the result matches a query
+ * (its rating and the letters from the name that match the search query) is kept by the
+ * SearchResultList it is part of, so that the same object can be used for each search.
  */
 public abstract class SearchResult {
     /** The name of the result that was used for matching. */
     public String name;
 
-    /**
-     * A measure of how much the query matches the name. The lower the match rating, the better the
-     * match.
-     */
-    public int match_rating = 0;
-
-    /** The characters from the name that match the query. */
-    public ArrayList<Integer> char_matches = null;
-
     /**
      * Simple constructor.
      *
@@ -40,4 +30,12 @@ public abstract class SearchResult {
      * @return a Drawable representing the icon for this search result
      */
     abstract Drawable resolveIcon(Context context);
+
+    /**
+     * Derived classes should implement this to identify the result, for the stable ids of the
+     * results list. Results of different classes should never get the same id.
+     *
+     * @return the id of the result
+     */
+    abstract long getId();
 }
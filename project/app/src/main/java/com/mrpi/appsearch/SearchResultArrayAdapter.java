@@ -1,40 +1,204 @@
 package com.mrpi.appsearch;
 
-import java.util.List;
-
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.PrecomputedText;
 import android.text.Spannable;
+import android.text.SpannableString;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Adapter to provide the data of the search results and present it in the
  * proper way.
  *
+ * The adapter shows the results of a SearchResultList from a given position
+ * onwards, so that the best match (which is presented separately) can be
+ * skipped. If the list is incomplete, the remaining results are added right
+ * after the last row is shown.
+ *
+ * A single adapter is used for all searches: each new list of results is
+ * handed over with setResults(). The item ids are stable (see
+ * SearchResult.getId()), and each row remembers what it's showing, so a row
+ * that shows the same result with the same highlighting as before is not
+ * rendered again.
+ *
+ * The highlighted names of the first rows can be prepared by the search
+ * thread (see prepareNames()), so that binding these rows only needs to attach
+ * them. From Android 9 on, their text layout is measured in advance as well.
+ *
+ * App icons that are not in the IconCache yet are loaded in the background, so
+ * that binding a row never waits for the package manager. The row shows a
+ * placeholder icon until then. Since rows are recycled, the loaded icon is only
+ * applied if the row still shows the same app; the load is cancelled when the
+ * row is rebound or scrolled off screen (see cancelIconLoad()).
+ *
  * @param <T> the type of search result to hold, as a subclass of SearchResult
  */
 public class SearchResultArrayAdapter<T extends SearchResult>
-        extends ArrayAdapter<T> {
+        extends BaseAdapter {
 
-    // The list of search results we need to format.
-    private List<T> m_search_result;
+    private final Context m_context;
+
+    // The list of search results we need to format, and the position in this list of the first
+    // result to show.
+    private SearchResultList<? extends T> m_search_results;
+    private int m_first;
 
     // Flag to indicate whether the matched characters should be highlighted.
     private boolean m_render_clear;
 
-    public SearchResultArrayAdapter(Context context, int textview_resource_id, List<T> search_result) {
-        super(context, textview_resource_id, search_result);
-        m_search_result   = search_result;
+    // The prepared names of the first rows (see prepareNames()), or null if there are none
+    private CharSequence[] m_prepared_names;
+
+    // The text metrics parameters of the rows, as a PrecomputedText.Params, once a row has been
+    // bound while attached to the window (before that, its text direction isn't known). It's kept
+    // as an Object, as the class doesn't exist before Android 9.
+    private volatile Object m_text_params = null;
+
+    /** The number of threads for loading icons. */
+    private static final int NUM_ICON_THREADS = 2;
+
+    // Thread pool for loading icons, shared by all adapters. The threads are created when needed.
+    private static ExecutorService m_icon_executor_service;
+
+    private static final Handler m_handler = new Handler(Looper.getMainLooper());
+
+    /** What a row shows, which is kept as the tag of the row view. */
+    private static class RowState {
+        final long id;
+        final String name;
+        final int[] char_matches;
+
+        /** The icon load of the row, or null if the icon is there. */
+        Future<?> icon_load;
+
+        RowState(long id, String name, int[] char_matches) {
+            this.id           = id;
+            this.name         = name;
+            this.char_matches = char_matches;
+        }
+
+        /**
+         * Check whether the row shows a result with the given highlighting. The matching
+         * positions are compared with the list directly, so that binding an unchanged row
+         * doesn't allocate anything.
+         *
+         * @param search_result  the result
+         * @param search_results the list holding the result
+         * @param position       the position of the result in the list
+         * @param num_matches    the number of matching positions to highlight
+         * @return true if the row shows this already
+         */
+        boolean shows(SearchResult search_result, SearchResultList<?> search_results, int position, int num_matches) {
+            if (id != search_result.getId() || !name.equals(search_result.name) ||
+                    char_matches.length != num_matches) {
+                return false;
+            }
+            for (int match = 0; match < num_matches; match++) {
+                if (char_matches[match] != search_results.getCharMatch(position, match)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param context the Context of the ListView
+     */
+    public SearchResultArrayAdapter(Context context) {
+        m_context         = context;
+        m_search_results  = new SearchResultList<>(0, 0);
+        m_first           = 0;
         m_render_clear    = false;
     }
 
+    /**
+     * Show a new list of results.
+     *
+     * @param search_results the list of search results
+     * @param first          the position in search_results of the first result to show
+     */
+    public void setResults(SearchResultList<? extends T> search_results, int first) {
+        setResults(search_results, first, null);
+    }
+
+    /**
+     * Show a new list of results.
+     *
+     * @param search_results the list of search results
+     * @param first          the position in search_results of the first result to show
+     * @param prepared_names the highlighted names of the first rows from prepareNames(), or null
+     */
+    public void setResults(SearchResultList<? extends T> search_results, int first, CharSequence[] prepared_names) {
+        m_search_results  = search_results;
+        m_first           = first;
+        m_render_clear    = false;
+        m_prepared_names  = prepared_names;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Highlight the names of the first rows ahead of time. Unlike the other methods, this may be
+     * called on any thread, so it can be done by the search thread.
+     *
+     * @param search_results the list of search results
+     * @param first          the position in search_results of the first result to show
+     * @param num_rows       the number of rows to prepare
+     * @return the names to pass to setResults()
+     */
+    public CharSequence[] prepareNames(SearchResultList<? extends T> search_results, int first, int num_rows) {
+        num_rows = Math.max(Math.min(num_rows, search_results.size() - first), 0);
+        CharSequence[] names = new CharSequence[num_rows];
+        for (int row = 0; row < num_rows; row++) {
+            names[row] = precompute(highlight(search_results, first + row));
+        }
+        return names;
+    }
+
+    /**
+     * Remove all results.
+     */
+    public void clear() {
+        setResults(new SearchResultList<T>(0, 0), 0, null);
+    }
+
+    public Context getContext() {
+        return m_context;
+    }
+
+    @Override
+    public int getCount() {
+        return Math.max(m_search_results.size() - m_first, 0);
+    }
+
+    @Override
+    public T getItem(int position) {
+        return m_search_results.get(m_first + position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
     /**
      * Format a single app from the list and return it as a {@link View} that can
      * be attached to a GUI.
@@ -46,69 +210,219 @@ public class SearchResultArrayAdapter<T extends SearchResult>
      */
     @Override
     public View getView(int position, View convert_view, ViewGroup parent) {
-        while (position < m_search_result.size()) {
-            SearchResult search_result = m_search_result.get(position);
-            View row_view = renderRow(search_result, convert_view, parent);
-            if (row_view != null) {
-                return row_view;
-            } else if (search_result instanceof AppSearchResult) {
-                // We're dealing with an app that is not installed anymore, so remove it from the
-                // database and move to the next.
-                // NOTE: it seems out of place to check for missing apps here, but it is in fact
-                // quite efficient to handle missing apps here along the way than to perform an
-                // explicit check each time for every search result.
-                DBHelper db_helper = DBHelper.getInstance(getContext());
-                db_helper.removePackage(((AppSearchResult) m_search_result).package_name);
-                m_search_result.remove(position);
-                notifyDataSetChanged();
-            }
+        if (position == getCount() - 1 && !m_search_results.isComplete()) {
+            // The user has scrolled to the end, so we need the rest of the results. They're added
+            // after the current layout pass, as the adapter shouldn't change while it's laid out.
+            final SearchResultList<? extends T> search_results = m_search_results;
+            m_handler.post(() -> {
+                if (search_results == m_search_results && !search_results.isComplete()) {
+                    search_results.complete();
+                    notifyDataSetChanged();
+                }
+            });
         }
 
-        // Return empty row when one app was removed from the list
-        LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        return inflater.inflate(R.layout.app_result, parent, false);
+        long start = LatencyTracer.begin(LatencyTracer.Stage.BINDING);
+        View row_view = renderRow(m_first + position, convert_view, parent);
+        LatencyTracer.end(LatencyTracer.Stage.BINDING, start);
+        return row_view;
     }
 
     /**
      * Render a single row in the list.
      *
-     * @param search_result The SearchResult object describing the result
-     * @param parent        The parent view to attach the view to
-     * @param convert_view  a possibly recycled view (see getView())
-     * @return the rendered view, or None if rendering failed
+     * @param position     The position of the result in m_search_results
+     * @param parent       The parent view to attach the view to
+     * @param convert_view a possibly recycled view (see getView())
+     * @return the rendered view
      */
-    private View renderRow(SearchResult search_result, View convert_view, ViewGroup parent) {
-        // Instantiate or recycle the row view
+    private View renderRow(int position, View convert_view, ViewGroup parent) {
+        SearchResult search_result = m_search_results.get(position);
+
+        int num_matches = m_render_clear ? 0 : m_search_results.getNumCharMatches(position);
+
+        // Instantiate or recycle the row view. If it shows this already, we're done.
         View row_view = null;
         if (convert_view != null) {
             row_view = convert_view;
+            Object tag = row_view.getTag();
+            if (tag instanceof RowState && ((RowState) tag).shows(search_result, m_search_results, position, num_matches)) {
+                return row_view;
+            }
         } else {
             LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             row_view = inflater.inflate(R.layout.app_result, parent, false);
         }
+        cancelIconLoad(row_view);
+        int[] char_matches = new int[num_matches];
+        for (int match = 0; match < num_matches; match++) {
+            char_matches[match] = m_search_results.getCharMatch(position, match);
+        }
+        RowState state = new RowState(search_result.getId(), search_result.name, char_matches);
+        row_view.setTag(state);
 
-        // Set icon
+        // Set icon, or a placeholder while it's loading
         ImageView image_view = (ImageView) row_view.findViewById(R.id.AppIcon);
-        Drawable icon = search_result.resolveIcon(getContext());
-        if (icon == null) {
-            return null;
+        if (search_result instanceof AppSearchResult) {
+            AppSearchResult app = (AppSearchResult) search_result;
+            Drawable icon = IconCache.peekIcon(getContext(), app.package_name);
+            if (icon != null) {
+                image_view.setImageDrawable(icon);
+            } else {
+                image_view.setImageDrawable(getContext().getPackageManager().getDefaultActivityIcon());
+                loadIcon(row_view, state, app);
+            }
+        } else {
+            image_view.setImageDrawable(search_result.resolveIcon(getContext()));
         }
-        image_view.setImageDrawable(icon);
 
-        // Set text; make the matching letters underlined and bold
+        // Set text; make the matching letters underlined and bold. Use the prepared text if it's
+        // there.
         TextView text_view = (TextView) row_view.findViewById(R.id.AppName);
-        text_view.setText(search_result.name, TextView.BufferType.SPANNABLE);
-        if (!m_render_clear && search_result.char_matches != null) {
-            Spannable spannable = (Spannable) text_view.getText();
-            for (Integer index : search_result.char_matches) {
-                spannable.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), index, index + 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                spannable.setSpan(new UnderlineSpan(), index, index + 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && text_view.isAttachedToWindow()) {
+            m_text_params = text_view.getTextMetricsParams();
+        }
+        int row = position - m_first;
+        if (num_matches == 0) {
+            text_view.setText(search_result.name);
+        } else if (m_prepared_names != null && row < m_prepared_names.length &&
+                fitsTextView(m_prepared_names[row], text_view)) {
+            text_view.setText(m_prepared_names[row]);
+        } else {
+            text_view.setText(highlight(m_search_results, position));
         }
 
         return row_view;
     }
 
+    /**
+     * Make the matching letters of the name of a result underlined and bold. Adjacent letters
+     * share their spans.
+     *
+     * @param search_results the list of search results
+     * @param position       the position of the result in the list
+     * @return the highlighted name
+     */
+    private static Spannable highlight(SearchResultList<? extends SearchResult> search_results, int position) {
+        SpannableString text = new SpannableString(search_results.get(position).name);
+        int num_matches = search_results.getNumCharMatches(position);
+        int match = 0;
+        while (match < num_matches) {
+            int start = search_results.getCharMatch(position, match++);
+            int end = start + 1;
+            while (match < num_matches && search_results.getCharMatch(position, match) == end) {
+                end++;
+                match++;
+            }
+            text.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new UnderlineSpan(), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return text;
+    }
+
+    /**
+     * Measure the text layout of a row name in advance, if that's supported.
+     *
+     * @param text the name
+     * @return a PrecomputedText, or the text itself if it can't be precomputed (yet).
+     */
+    private CharSequence precompute(Spannable text) {
+        Object text_params = m_text_params;
+        if (text_params != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return PrecomputedText.create(text, (PrecomputedText.Params) text_params);
+        }
+        return text;
+    }
+
+    /**
+     * Check whether a prepared name can be set on a text view. A PrecomputedText can only be set
+     * if it was measured with the text metrics parameters of the view, or setText() throws an
+     * IllegalArgumentException. The parameters may differ if they were taken from another row, for
+     * instance one in another text direction.
+     *
+     * @param name      the prepared name
+     * @param text_view the text view of the row
+     * @return true if the name can be set as it is.
+     */
+    private static boolean fitsTextView(CharSequence name, TextView text_view) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && name instanceof PrecomputedText) {
+            return ((PrecomputedText) name).getParams().equals(text_view.getTextMetricsParams());
+        }
+        return true;
+    }
+
+    /**
+     * Load the icon of an app in the background, and show it in the row if the row still shows
+     * the app by then.
+     *
+     * @param row_view the view of the row
+     * @param state    the state of the row
+     * @param app      the app shown in the row
+     */
+    private void loadIcon(final View row_view, final RowState state, final AppSearchResult app) {
+        final Context context = getContext();
+        state.icon_load = getIconExecutorService().submit(() -> {
+            final Drawable icon = IconCache.getIcon(context, app.package_name);
+            if (icon == null) {
+                // We're dealing with an app that is not installed anymore, so remove it from the
+                // database.
+                // NOTE: it seems out of place to check for missing apps here, but it is in fact
+                // quite efficient to handle missing apps here along the way than to perform an
+                // explicit check each time for every search result.
+                DBHelper.getInstance(context).removePackage(app.package_name);
+            }
+            m_handler.post(() -> {
+                if (icon == null) {
+                    removeResult(app);
+                } else if (row_view.getTag() == state && !state.icon_load.isCancelled()) {
+                    ((ImageView) row_view.findViewById(R.id.AppIcon)).setImageDrawable(icon);
+                    state.icon_load = null;
+                }
+            });
+        });
+    }
+
+    /**
+     * Remove a result from the list, because the app is not installed anymore.
+     *
+     * @param search_result the result to remove
+     */
+    private void removeResult(SearchResult search_result) {
+        for (int position = m_first; position < m_search_results.size(); position++) {
+            if (m_search_results.get(position) == search_result) {
+                m_search_results.remove(position);
+                m_prepared_names = null; // These don't match the rows anymore
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cancel the icon load of a row, if any. This should be called when the row is scrolled off
+     * screen, so it can be used as the RecyclerListener of the ListView.
+     *
+     * @param row_view the view of the row
+     */
+    public static void cancelIconLoad(View row_view) {
+        Object tag = row_view.getTag();
+        if (tag instanceof RowState && ((RowState) tag).icon_load != null) {
+            ((RowState) tag).icon_load.cancel(false);
+            // Without its icon, the row needs to be rendered again
+            row_view.setTag(null);
+        }
+    }
+
+    /**
+     * @return the thread pool for loading icons, which is created on first use.
+     */
+    private static synchronized ExecutorService getIconExecutorService() {
+        if (m_icon_executor_service == null) {
+            m_icon_executor_service = Executors.newFixedThreadPool(NUM_ICON_THREADS);
+        }
+        return m_icon_executor_service;
+    }
+
     /**
      * Special method to re-render the results list but without the highlighting
      * of the matched characters.
@@ -0,0 +1,248 @@
+package com.mrpi.appsearch;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A list of search results together with how they match the query.
+ *
+ * The SearchResult objects themselves are stable objects that are shared between searches (see
+ * NameIndex), so the data that's specific to a query is kept in this list, in parallel primitive
+ * arrays: the match rating of each result, and the positions of the characters in its name that
+ * match the query. The positions of all results are packed into a single int array, with an
+ * offset table pointing to the positions of each result.
+ *
+ * The list can be used as a normal List of results, but only adding results and removing them is
+ * supported.
+ *
+ * A list may be incomplete: a searcher can produce only the best results up front, and leave the
+ * rest to a Continuation that is only run when the remaining results are really needed (see
+ * {@link #complete()}).
+ *
+ * @param <T> the type of search results in the list.
+ */
+public class SearchResultList<T extends SearchResult>
+        extends AbstractList<T> implements RandomAccess {
+
+    private SearchResult[] m_results;
+    private int[] m_ratings;
+
+    /** The start of the matching positions of each result in m_char_matches. The element after the
+     *  last result points to the end of the used part of m_char_matches. */
+    private int[] m_match_offsets;
+    private int[] m_char_matches;
+
+    private int m_size = 0;
+
+    /**
+     * Interface for producing the remaining results of an incomplete list.
+     */
+    public interface Continuation<T extends SearchResult> {
+        /**
+         * Add the remaining results to the list.
+         *
+         * @param list the list to add the results to.
+         */
+        void addRemaining(SearchResultList<T> list);
+    }
+
+    /** The producer of the remaining results, or null if the list is complete. */
+    private Continuation<T> m_continuation = null;
+
+    /**
+     * Create an empty list.
+     *
+     * @param capacity the number of results to reserve space for.
+     * @param match_capacity the number of matching positions to reserve space for.
+     */
+    public SearchResultList(int capacity, int match_capacity) {
+        m_results       = new SearchResult[Math.max(capacity, 1)];
+        m_ratings       = new int[m_results.length];
+        m_match_offsets = new int[m_results.length + 1];
+        m_char_matches  = new int[Math.max(match_capacity, 1)];
+    }
+
+    /**
+     * Create a list from results that have no match data, like the most used apps.
+     *
+     * @param results the results to put in the list.
+     */
+    public SearchResultList(Collection<? extends T> results) {
+        this(results.size(), 0);
+        for (T result : results) add(result);
+    }
+
+    /**
+     * Add a result without any matching characters.
+     *
+     * @param result the result to add
+     * @return true
+     */
+    @Override
+    public boolean add(T result) {
+        return add(result, 0, null, 0, 0);
+    }
+
+    /**
+     * Add a result with its match data.
+     *
+     * @param result the result to add
+     * @param rating the match rating of the result
+     * @param char_matches an array holding the positions of the matching characters of the name
+     * @param from the position in char_matches where the positions for this result start
+     * @param count the number of matching positions
+     * @return true
+     */
+    public boolean add(T result, int rating, int[] char_matches, int from, int count) {
+        if (m_size == m_results.length) {
+            int capacity = m_results.length * 2;
+            m_results       = Arrays.copyOf(m_results, capacity);
+            m_ratings       = Arrays.copyOf(m_ratings, capacity);
+            m_match_offsets = Arrays.copyOf(m_match_offsets, capacity + 1);
+        }
+        int match_offset = m_match_offsets[m_size];
+        if (match_offset + count > m_char_matches.length) {
+            m_char_matches = Arrays.copyOf(m_char_matches, Math.max(m_char_matches.length * 2, match_offset + count));
+        }
+
+        m_results[m_size] = result;
+        m_ratings[m_size] = rating;
+        if (count > 0) System.arraycopy(char_matches, from, m_char_matches, match_offset, count);
+        m_match_offsets[m_size + 1] = match_offset + count;
+        m_size++;
+        modCount++;
+
+        return true;
+    }
+
+    /**
+     * Append all the results of another list, with their match data. Both lists are completed
+     * first, so that the results of the other list are not mixed with the remaining results of this
+     * list.
+     *
+     * @param other the list to append
+     */
+    public void addAll(SearchResultList<? extends T> other) {
+        complete();
+        other.complete();
+        for (int position = 0; position < other.size(); position++) {
+            add(other, position);
+        }
+    }
+
+    /**
+     * Append a single result of another list, with its match data.
+     *
+     * @param other the list holding the result
+     * @param position the position of the result in the other list
+     */
+    public void add(SearchResultList<? extends T> other, int position) {
+        add(other.get(position), other.m_ratings[position], other.m_char_matches,
+                other.m_match_offsets[position], other.getNumCharMatches(position));
+    }
+
+    /**
+     * Mark the list as incomplete.
+     *
+     * @param continuation the Continuation that can add the remaining results.
+     */
+    public void setContinuation(Continuation<T> continuation) {
+        m_continuation = continuation;
+    }
+
+    /**
+     * @return false if there are more results that can be added with complete().
+     */
+    public boolean isComplete() {
+        return m_continuation == null;
+    }
+
+    /**
+     * Add the remaining results to the list, if it was incomplete.
+     */
+    public void complete() {
+        if (m_continuation != null) {
+            Continuation<T> continuation = m_continuation;
+            m_continuation = null;
+            continuation.addRemaining(this);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int position) {
+        checkPosition(position);
+        return (T) m_results[position];
+    }
+
+    @Override
+    public int size() {
+        return m_size;
+    }
+
+    @Override
+    public T remove(int position) {
+        T result = get(position);
+        int count = getNumCharMatches(position);
+        int match_offset = m_match_offsets[position];
+
+        System.arraycopy(m_results, position + 1, m_results, position, m_size - position - 1);
+        System.arraycopy(m_ratings, position + 1, m_ratings, position, m_size - position - 1);
+        System.arraycopy(m_char_matches, match_offset + count, m_char_matches, match_offset,
+                m_match_offsets[m_size] - match_offset - count);
+        for (int i = position; i < m_size; i++) {
+            m_match_offsets[i] = m_match_offsets[i + 1] - count;
+        }
+        m_size--;
+        m_results[m_size] = null;
+        modCount++;
+
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(m_results, 0, m_size, null);
+        m_size = 0;
+        m_match_offsets[0] = 0;
+        m_continuation = null;
+        modCount++;
+    }
+
+    /**
+     * @param position the position of the result in the list
+     * @return the match rating of the result. The lower the match rating, the better the match.
+     */
+    public int getMatchRating(int position) {
+        checkPosition(position);
+        return m_ratings[position];
+    }
+
+    /**
+     * @param position the position of the result in the list
+     * @return the number of characters of the name that match the query. If 0, the result was not
+     *         matched to a query.
+     */
+    public int getNumCharMatches(int position) {
+        checkPosition(position);
+        return m_match_offsets[position + 1] - m_match_offsets[position];
+    }
+
+    /**
+     * @param position the position of the result in the list
+     * @param match the number of the matching character, from 0 to getNumCharMatches()
+     * @return the position in the name of the matching character.
+     */
+    public int getCharMatch(int position, int match) {
+        checkPosition(position);
+        return m_char_matches[m_match_offsets[position] + match];
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= m_size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + m_size);
+        }
+    }
+}
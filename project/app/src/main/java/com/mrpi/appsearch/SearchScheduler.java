@@ -0,0 +1,163 @@
+package com.mrpi.appsearch;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler that runs searches in the background, one at a time, where the latest search wins.
+ *
+ * While the user is typing, each keystroke submits a new search. Only one search runs at a time,
+ * on a single background thread; searches that are submitted while one is running are coalesced,
+ * so that only the newest one runs next and the ones in between are skipped altogether. This
+ * bounds the CPU and database load, no matter how fast the user types.
+ *
+ * A search delivers its results to the UI thread through its Ticket (see
+ * {@link Ticket#publish(Runnable)}). Once a newer search has been submitted, the results of older
+ * searches are dropped, even if they were already posted. The running search is also cancelled
+ * through the CancellationSignal of its ticket, so it stops as soon as it notices.
+ *
+ * submit() and dropAll() should be called on the UI thread.
+ */
+public class SearchScheduler {
+
+    /**
+     * A search to run in the background.
+     */
+    public interface Job {
+        /**
+         * Perform the search. This is called on the search thread.
+         *
+         * @param ticket the ticket of the search, to publish results with.
+         * @throws Exception the exception is logged and otherwise ignored.
+         */
+        void run(Ticket ticket) throws Exception;
+    }
+
+    /**
+     * The ticket of a submitted search, which knows whether it's still the latest one.
+     */
+    public class Ticket {
+        private final long m_sequence;
+        private final CancellationSignal m_signal = new CancellationSignal();
+
+        private Ticket(long sequence) {
+            m_sequence = sequence;
+        }
+
+        /**
+         * @return the signal that is cancelled when a newer search is submitted. It should be
+         *         passed on to the searchers and database queries.
+         */
+        public CancellationSignal getCancellationSignal() {
+            return m_signal;
+        }
+
+        /**
+         * @return true if a newer search has been submitted since, so that the results of this one
+         *         are no longer needed.
+         */
+        public boolean isStale() {
+            return m_sequence != m_latest;
+        }
+
+        /**
+         * Run an action on the UI thread to deliver results, unless the search is stale by then.
+         *
+         * @param action the action to run
+         */
+        public void publish(Runnable action) {
+            if (isStale()) return;
+            m_handler.post(() -> {
+                if (!isStale()) action.run();
+            });
+        }
+    }
+
+    // The search thread, which ends after a minute of idling
+    private final ExecutorService m_executor_service =
+            new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Handler m_handler = new Handler(Looper.getMainLooper());
+
+    /** The sequence number of the latest search. */
+    private volatile long m_latest = 0;
+
+    /** The search that should run next, or null if there's none. */
+    private Job m_pending_job = null;
+    private Ticket m_pending_ticket = null;
+
+    /** The ticket of the search that is running, or null if there's none. */
+    private Ticket m_running_ticket = null;
+
+    /** Whether the search thread is busy with the pending searches. */
+    private boolean m_running = false;
+
+    /**
+     * Schedule a search. It replaces the search that was waiting to run, if any.
+     *
+     * @param job the search to run
+     */
+    public synchronized void submit(Job job) {
+        cancelRunning();
+        m_latest++;
+        m_pending_job = job;
+        m_pending_ticket = new Ticket(m_latest);
+        if (!m_running) {
+            m_running = true;
+            m_executor_service.execute(this::runPending);
+        }
+    }
+
+    /**
+     * Drop the waiting search and the results of the running one, for instance because the query
+     * was cleared.
+     */
+    public synchronized void dropAll() {
+        cancelRunning();
+        m_latest++;
+        m_pending_job = null;
+        m_pending_ticket = null;
+    }
+
+    private void cancelRunning() {
+        if (m_running_ticket != null) m_running_ticket.m_signal.cancel();
+    }
+
+    /**
+     * Run the pending searches until there are none left.
+     */
+    private void runPending() {
+        while (true) {
+            Job job;
+            Ticket ticket;
+            synchronized (this) {
+                m_running_ticket = null;
+                if (m_pending_job == null) {
+                    m_running = false;
+                    return;
+                }
+                job = m_pending_job;
+                ticket = m_pending_ticket;
+                m_pending_job = null;
+                m_pending_ticket = null;
+                m_running_ticket = ticket;
+            }
+
+            try {
+                job.run(ticket);
+            } catch (OperationCanceledException e) {
+                Log.d("AppSearch", "Search cancelled");
+            } catch (Exception e) {
+                Log.d("AppSearch", "Exception occurred", e);
+            }
+        }
+    }
+}
@@ -15,12 +15,14 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.RemoteViews;
 
 import java.util.ArrayList;
@@ -57,6 +59,12 @@ public class SmartIcon
     public final static String HAS_BACKGROUND         = "HAS_BACKGROUND";
     public final static String IS_CONFIGURED          = "IS_CONFIGURED";
 
+    // What each widget shows (the app and its style), by widget id
+    private static final SparseArray<String> m_shown = new SparseArray<>();
+
+    // The bitmap the widget icons are rendered to (see getIconBitmap())
+    private static Bitmap m_icon_bitmap;
+
     /**
      * Called by the system each time the widget is updated. This actually
      * happens only once, the very first time the widget is instantiated. From
@@ -71,6 +79,12 @@ public class SmartIcon
     public void onUpdate(Context context,
                          AppWidgetManager widget_manager,
                          int[] widget_ids) {
+        // The host might have lost the views of these widgets, so render them again
+        synchronized (m_shown) {
+            for (int widget_id : widget_ids) {
+                m_shown.remove(widget_id);
+            }
+        }
         updateWidgets(context);
         context.startService(new Intent(context, SmartIconRotationService.class));
         super.onUpdate(context, widget_manager, widget_ids);
@@ -80,17 +94,16 @@ public class SmartIcon
      * Render all widgets  to represent the top apps for this moment. The topmost app is rendered
      * to the first widget, the second to the second widget, and so on.
      *
+     * Widgets that already show the right app with the right style are skipped (see m_shown), so
+     * most updates don't need any rendering or updateAppWidget() calls.
+     *
      * @param context the application context for this widget
      */
     private void updateWidgets(Context context) {
         SharedPreferences preferences = context.getSharedPreferences(SMART_ICON_PREFERENCES,
                 Context.MODE_MULTI_PROCESS);
 
-        // The views representing the widgets
-        RemoteViews views = new RemoteViews(context.getPackageName(),
-                R.layout.smart_icon);
-
-        // Set background, text and icon size, and paddings
+        // Get background, text and icon size, and paddings
         float text_size = context.getResources().getDimension(R.dimen.smart_icon_text_size_default);
         int icon_size =  context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
         int text_padding;
@@ -106,17 +119,15 @@ public class SmartIcon
             text_size = preferences.getFloat(SmartIcon.TEXT_SIZE_L, text_size);
             icon_size = preferences.getInt(SmartIcon.ICON_SIZE_L, icon_size);
         }
-        if (preferences.getBoolean(HAS_BACKGROUND, true)) {
-            views.setInt(R.id.widget_container, "setBackgroundResource", R.drawable.smart_icon_background);
-        } else {
-            views.setInt(R.id.widget_container, "setBackgroundResource", 0);
-        }
-        views.setViewPadding(R.id.widget_icon, 0, icon_padding, 0, 0);
-        views.setViewPadding(R.id.widget_text, 0, text_padding, 0, 0);
-        views.setFloat(R.id.widget_text, "setTextSize", text_size);
+        boolean has_background = preferences.getBoolean(HAS_BACKGROUND, true);
+        boolean is_bold = preferences.getBoolean(TEXT_BOLD, false);
+        boolean is_italic = preferences.getBoolean(TEXT_ITALIC, false);
+        String style = icon_size + "/" + icon_padding + "/" + text_size + "/" + text_padding + "/" +
+                has_background + "/" + is_bold + "/" + is_italic;
 
         // Get all the widget ids
-        int[] widget_ids = AppWidgetManager.getInstance(context).getAppWidgetIds(new ComponentName(context, SmartIcon.class));
+        AppWidgetManager widget_manager = AppWidgetManager.getInstance(context);
+        int[] widget_ids = widget_manager.getAppWidgetIds(new ComponentName(context, SmartIcon.class));
 
         // Search for the top apps for the number of widgets there are
         MostUsedAppsSearcher searcher = new MostUsedAppsSearcher(context, widget_ids.length);
@@ -125,6 +136,7 @@ public class SmartIcon
         // Fill the widgets with the top apps
         PackageManager package_manager = context.getPackageManager();
         int app_num = 0;
+        int num_rendered = 0;
         for (int widget_num = 0; widget_num < widget_ids.length; widget_num++) {
 
             // Try to find a matching app
@@ -143,20 +155,47 @@ public class SmartIcon
                 }
             }
 
+            // Skip the widget if it shows this already. The position of the app is part of the
+            // content, as it's used as request code of the PendingIntent.
+            String content = (app_resources != null) ? app.package_name + "/" + app.name + "/" + app_num : "";
+            content += "/" + style;
+            synchronized (m_shown) {
+                if (content.equals(m_shown.get(widget_ids[widget_num]))) {
+                    app_num++;
+                    continue;
+                }
+            }
+
+            // The views representing the widget
+            RemoteViews views = new RemoteViews(context.getPackageName(),
+                    R.layout.smart_icon);
+
+            // Set background, text size and paddings
+            if (has_background) {
+                views.setInt(R.id.widget_container, "setBackgroundResource", R.drawable.smart_icon_background);
+            } else {
+                views.setInt(R.id.widget_container, "setBackgroundResource", 0);
+            }
+            views.setViewPadding(R.id.widget_icon, 0, icon_padding, 0, 0);
+            views.setViewPadding(R.id.widget_text, 0, text_padding, 0, 0);
+            views.setFloat(R.id.widget_text, "setTextSize", text_size);
+
             // Load app icon and name or defaults
-            Drawable icon_raw;
+            Drawable icon_raw = null;
             String label;
             if (app_resources != null) {
-                icon_raw = package_manager.getApplicationIcon(app_info);
+                icon_raw = IconCache.getIcon(context, app.package_name);
                 label = app.name;
             } else {
-                // We're out of apps, use default icons and text
-                icon_raw = context.getResources().getDrawable(android.R.drawable.ic_delete);
+                // We're out of apps, use default text
                 label = context.getResources().getString(R.string.no_app_name);
             }
+            if (icon_raw == null) {
+                icon_raw = context.getResources().getDrawable(android.R.drawable.ic_delete);
+            }
 
             // Render application icon to widget format and set it to the widget
-            Bitmap icon_scaled = Bitmap.createBitmap(icon_size, icon_size, Bitmap.Config.ARGB_8888);
+            Bitmap icon_scaled = getIconBitmap(icon_size);
             Canvas icon_canvas = new Canvas(icon_scaled);
             icon_raw.setBounds(0, 0, icon_size, icon_size);
             icon_raw.draw(icon_canvas);
@@ -164,10 +203,10 @@ public class SmartIcon
 
             // Set widget label
             Spannable spannable = new SpannableString(label);
-            if (preferences.getBoolean(TEXT_BOLD, false)) {
+            if (is_bold) {
                 spannable.setSpan(new StyleSpan(Typeface.BOLD), 0, label.length(), 0);
             }
-            if (preferences.getBoolean(TEXT_ITALIC, false)) {
+            if (is_italic) {
                 spannable.setSpan(new StyleSpan(Typeface.ITALIC), 0, label.length(), 0);
             }
             views.setTextViewText(R.id.widget_text, spannable);
@@ -195,9 +234,42 @@ public class SmartIcon
                 views.setOnClickPendingIntent(R.id.widget_text, null);
             }
 
-            AppWidgetManager.getInstance(context).updateAppWidget(widget_ids[widget_num], views);
+            // The views are sent off right away, so the bitmap can be reused after this
+            widget_manager.updateAppWidget(widget_ids[widget_num], views);
+            synchronized (m_shown) {
+                m_shown.put(widget_ids[widget_num], content);
+            }
+            num_rendered++;
             app_num++;
         }
+        Log.d("Widget", "Rendered " + num_rendered + " of " + widget_ids.length + " widgets");
+    }
+
+    /**
+     * Get the bitmap to render a widget icon to. As the widgets are rendered one at a time, and
+     * their views are sent off before the next one is rendered, the same bitmap is reused as long
+     * as the icon size stays the same.
+     *
+     * @param icon_size the width and height in pixels
+     * @return a transparent bitmap
+     */
+    private static synchronized Bitmap getIconBitmap(int icon_size) {
+        if (m_icon_bitmap == null || m_icon_bitmap.getWidth() != icon_size) {
+            m_icon_bitmap = Bitmap.createBitmap(icon_size, icon_size, Bitmap.Config.ARGB_8888);
+        } else {
+            m_icon_bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return m_icon_bitmap;
+    }
+
+    /**
+     * Forget what the widgets show, so that they're all rendered on the next update. This should
+     * be called when the icons might have changed.
+     */
+    public static void forgetShown() {
+        synchronized (m_shown) {
+            m_shown.clear();
+        }
     }
 
     /**
@@ -240,6 +312,19 @@ public class SmartIcon
         }
     }
 
+    /**
+     * Called when widgets are removed.
+     */
+    @Override
+    public void onDeleted(Context context, int[] widget_ids) {
+        synchronized (m_shown) {
+            for (int widget_id : widget_ids) {
+                m_shown.remove(widget_id);
+            }
+        }
+        super.onDeleted(context, widget_ids);
+    }
+
     /**
      * Called when all widgets are removed. This method cancels the running
      * AlarmManager.
@@ -0,0 +1,208 @@
+package com.mrpi.appsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that matching through the next-occurrence tables (FuzzySearcher.mapToQuery()) gives the
+ * same match ratings and matching characters as the plain indexOf/charAt scan of the search key
+ * that it replaced, so that the ranking doesn't drift.
+ */
+public class FuzzySearcherTest {
+
+    /** An index over a list of names, without a database. */
+    private static class TestIndex extends NameIndex<AppSearchResult> {
+        TestIndex(List<String> names) {
+            super(names, null, null, rowIds(names.size()));
+            createResults();
+        }
+
+        private static long[] rowIds(int num_names) {
+            long[] row_ids = new long[num_names];
+            for (int entry = 0; entry < num_names; entry++) row_ids[entry] = entry + 1;
+            return row_ids;
+        }
+
+        @Override
+        AppSearchResult createResult(int entry) {
+            return new AppSearchResult(getName(entry), "package" + entry);
+        }
+    }
+
+    /** A searcher over a TestIndex. */
+    private static class TestSearcher extends FuzzySearcher<AppSearchResult> {
+        private final TestIndex m_index;
+
+        TestSearcher(TestIndex index) {
+            super(null);
+            m_index = index;
+        }
+
+        @Override
+        protected NameIndex<AppSearchResult> getIndex() {
+            return m_index;
+        }
+
+        @Override
+        protected String getFullTextTable() {
+            return null;
+        }
+    }
+
+    /** The place in char_matches where mapToQuery() should start writing. */
+    private static final int FROM = 3;
+
+    /**
+     * The matching as it was before the next-occurrence tables: look for the query as a whole
+     * with indexOf, and otherwise walk the key with charAt.
+     *
+     * @param index the index holding the name
+     * @param entry the entry number
+     * @param query the normalized query
+     * @param char_matches filled with the matching positions in the name
+     * @return the match rating, or NO_MATCH
+     */
+    private static int baselineMapToQuery(NameIndex<?> index, int entry, String query, int[] char_matches) {
+        int offset = index.getKeyOffset(entry);
+        String key = new String(index.getKeys(), offset, index.getKeyLength(entry));
+        int query_length = query.length();
+
+        int match_rating;
+        int index_of = key.indexOf(query);
+        if (index_of != -1) {
+            if ((index_of == 0) && (query_length == key.length())) {
+                match_rating = -1;
+            } else {
+                match_rating = index_of;
+            }
+            for (int i = 0; i < query_length; i++) {
+                char_matches[i] = index_of + i;
+            }
+        } else {
+            int rating = 100;
+            int name_pos = -1;
+            for (int query_pos = 0; query_pos < query_length; query_pos++) {
+                name_pos += 1;
+                char query_char = query.charAt(query_pos);
+                while (name_pos < key.length() && key.charAt(name_pos) != query_char) {
+                    rating += 1;
+                    name_pos += 1;
+                }
+                if (name_pos == key.length()) return FuzzySearcher.NO_MATCH;
+                char_matches[query_pos] = name_pos;
+            }
+            match_rating = rating;
+        }
+
+        for (int i = 0; i < query_length; i++) {
+            char_matches[i] = index.getNamePosition(entry, char_matches[i]);
+        }
+        return match_rating;
+    }
+
+    /**
+     * Match all queries against all names with both matchers, and compare the outcome.
+     *
+     * @return the number of pairs that matched
+     */
+    private static int assertSameMatches(List<String> names, List<String> queries) {
+        TestIndex index = new TestIndex(names);
+        TestSearcher searcher = new TestSearcher(index);
+        int num_matched = 0;
+        for (String query : queries) {
+            String norm_query = NameIndex.searchKey(query);
+            for (int entry = 0; entry < index.size(); entry++) {
+                String pair = "\"" + names.get(entry) + "\" / \"" + norm_query + "\"";
+
+                int[] expected_matches = new int[norm_query.length()];
+                int expected_rating = baselineMapToQuery(index, entry, norm_query, expected_matches);
+
+                int[] char_matches = new int[FROM + norm_query.length()];
+                int rating = searcher.mapToQuery(index, entry, norm_query, char_matches, FROM);
+
+                assertEquals("match_rating of " + pair, expected_rating, rating);
+                if (rating != FuzzySearcher.NO_MATCH) {
+                    assertArrayEquals("char_matches of " + pair, expected_matches,
+                            Arrays.copyOfRange(char_matches, FROM, char_matches.length));
+                    num_matched++;
+                }
+            }
+        }
+        return num_matched;
+    }
+
+    private static String repeat(String part, int length) {
+        StringBuilder repeated = new StringBuilder();
+        while (repeated.length() < length) repeated.append(part);
+        return repeated.substring(0, length);
+    }
+
+    /** Names with accents, repeated letters and lengths around the limit of the tables. */
+    private static List<String> corpus() {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                "Google Maps", "Play Store", "Gmail", "Éclair Café", "Crème Brûlée", "naïve",
+                "Ångström", "e\u0301te\u0301", "Straße", "ÉÉÉ", "Aaaa", "aabaab", "Mississippi",
+                "banana", "Bookkeeper", "a", "", "Zzz", "WhatsApp", "F-Droid", "1Password",
+                "x.y.z", "CAFÉ café", "\ufb01nder"));
+        names.add(repeat("ab", 254));
+        names.add(repeat("ab", 255));
+        names.add(repeat("ab", 256));
+        names.add(repeat("abcé ", 300));
+        names.add(repeat("a", 300) + "b");
+        names.add(repeat("Mississippi ", 600));
+        return names;
+    }
+
+    @Test
+    public void fixedQueriesMatchLikeBaseline() {
+        List<String> names = corpus();
+        List<String> queries = new ArrayList<>(Arrays.asList(
+                "", "\u0301", "a", "aa", "aaa", "aab", "ab", "ba", "b", "e", "ee", "eee", "cafe",
+                "eclair", "ec", "gm", "ps", "ss", "sss", "ssi", "issi", "ppi", "mississippi",
+                "ana", "nana", "kee", "zzzz", "z", "1", "fi", "xz", "..", "ångström", "q"));
+        // A query that is the name itself, and one that is the name with something added
+        for (String name : names) {
+            queries.add(name);
+            queries.add(name + "a");
+        }
+        assertSameMatches(names, queries);
+    }
+
+    @Test
+    public void randomQueriesMatchLikeBaseline() {
+        Random random = new Random(42);
+        String alphabet = "abcAB é-xyz.éÉ!?0\u0301";
+
+        List<String> names = corpus();
+        for (int name_nr = 0; name_nr < 500; name_nr++) {
+            int length = random.nextInt((name_nr % 25 == 0) ? 400 : 20);
+            StringBuilder name = new StringBuilder();
+            for (int pos = 0; pos < length; pos++) {
+                name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            names.add(name.toString());
+        }
+
+        List<String> queries = new ArrayList<>();
+        for (int query_nr = 0; query_nr < 300; query_nr++) {
+            int length = 1 + random.nextInt(4);
+            StringBuilder query = new StringBuilder();
+            for (int pos = 0; pos < length; pos++) {
+                query.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            queries.add(query.toString());
+        }
+
+        int num_matched = assertSameMatches(names, queries);
+        // Make sure the corpus isn't so random that hardly anything matches
+        assertTrue(num_matched > 10000);
+    }
+}